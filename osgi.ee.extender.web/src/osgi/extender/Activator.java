@@ -15,21 +15,37 @@
  */
 package osgi.extender;
 
+import java.io.File;
+
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.util.tracker.BundleTracker;
 
+import osgi.extender.web.SessionStore;
+import osgi.extender.web.service.FileSessionStore;
+import osgi.extender.web.service.TLDIndex;
 import osgi.extender.web.service.WebBundleChangeListener;
 
 /**
- * Activator that just starts up the bundle listener that tracks web application bundles.
+ * Activator that just starts up the bundle listener that tracks web application bundles. When the framework property
+ * "osgi.extender.web.sessionstore.file" is true, it also registers the file based session store. The resolved
+ * bundles are tracked as well, to keep the index of the tag library descriptors up-to-date.
  */
 public class Activator implements BundleActivator {
     private BundleTracker<?> tracker;
+    private BundleTracker<?> tldTracker;
 
     @Override
     public void start(BundleContext context) throws Exception {
+        // Not possible without a data area, for example on a framework without file system support.
+        File directory = context.getDataFile("sessionstore");
+        if (directory != null && Boolean.parseBoolean(context.getProperty("osgi.extender.web.sessionstore.file"))) {
+            context.registerService(SessionStore.class, new FileSessionStore(directory), null);
+        }
+        tldTracker = new BundleTracker<>(context, Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING,
+                TLDIndex.instance());
+        tldTracker.open();
         tracker = new BundleTracker<>(context, Bundle.ACTIVE, new WebBundleChangeListener());
         new Thread(() -> tracker.open()).start();
     }
@@ -37,5 +53,6 @@ public class Activator implements BundleActivator {
     @Override
     public void stop(BundleContext context) {
         tracker.close();
+        tldTracker.close();
     }
 }
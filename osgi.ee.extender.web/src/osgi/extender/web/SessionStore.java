@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage for the sessions of the web contexts. When a service with this interface is registered, the web extender
+ * keeps the sessions of its contexts in the store instead of in the session of the container, so requests of a
+ * client may be handled by any node that shares the store. The session is identified by a cookie per context.
+ * The attributes are passed in serialized form. Only the changed attributes are written, after the request has
+ * been handled. Every write of attributes gives the session a new version, which is used to see whether a locally
+ * cached copy of a session is still current. The times of the session are written along, also after a request that
+ * didn't change any attributes, so every node enforces the same expiry.
+ */
+public interface SessionStore {
+    /**
+     * Times of a session, in milliseconds since the epoch.
+     */
+    public static final class Times {
+        public final long created;
+        public final long lastAccessed;
+        public final long expiry;
+
+        public Times(long created, long lastAccessed, long expiry) {
+            this.created = created;
+            this.lastAccessed = lastAccessed;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * Get the current version of a session.
+     *
+     * @param contextPath The context path of the web context
+     * @param id The session identifier
+     * @return The version, or -1 if the session isn't in the store
+     */
+    public long getVersion(String contextPath, String id);
+    /**
+     * Load a session.
+     *
+     * @param contextPath The context path of the web context
+     * @param id The session identifier
+     * @return A map with the serialized attributes by name, or null if the session isn't in the store
+     */
+    public Map<String, byte[]> load(String contextPath, String id);
+    /**
+     * Get the times of a session.
+     *
+     * @param contextPath The context path of the web context
+     * @param id The session identifier
+     * @return The times as last stored, or null if the session isn't in the store
+     */
+    public Times getTimes(String contextPath, String id);
+    /**
+     * Store the changes of a session. A session that isn't in the store yet, is created. When no attributes are
+     * changed or removed, only the times are replaced and the version stays the same.
+     *
+     * @param contextPath The context path of the web context
+     * @param id The session identifier
+     * @param times The current times of the session, replacing the stored ones
+     * @param changed The serialized attributes that were added or changed
+     * @param removed The names of the attributes that were removed
+     * @return The new version of the session
+     */
+    public long store(String contextPath, String id, Times times, Map<String, byte[]> changed, Set<String> removed);
+    /**
+     * Remove a session from the store.
+     *
+     * @param contextPath The context path of the web context
+     * @param id The session identifier
+     */
+    public void remove(String contextPath, String id);
+    /**
+     * Remove the sessions of a context whose expiry time has passed.
+     *
+     * @param contextPath The context path of the web context
+     * @param now The current time in milliseconds
+     */
+    public void removeExpired(String contextPath, long now);
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web;
+
+import java.util.Map;
+
+/**
+ * Latencies of the servlets and filters of a web context. The web extender registers a service with this interface
+ * for every web context it runs, with the same "osgi.web.contextpath" property as the servlet context service.
+ * The latency of a filter includes the time spent in the rest of the chain. For asynchronous requests, only the
+ * time until the chain returns is measured.
+ */
+public interface WebContextLatencies {
+    /**
+     * Latency of a servlet or filter.
+     */
+    public interface Latency {
+        /**
+         * Get the number of calls.
+         *
+         * @return The number of calls
+         */
+        public long getCount();
+        /**
+         * Get the number of calls that ended with an exception.
+         *
+         * @return The number of errors
+         */
+        public long getErrors();
+        /**
+         * Get a percentile of the latency. The value has a precision of about 6%.
+         *
+         * @param percentile The percentile, like 99.9
+         * @return The latency in nanoseconds, 0 if there were no calls
+         */
+        public long getPercentile(double percentile);
+        /**
+         * Get the highest latency.
+         *
+         * @return The latency in nanoseconds
+         */
+        public long getMax();
+    }
+
+    /**
+     * Get the context path of the web context the latencies are for.
+     *
+     * @return The context path, like "/MyContext"
+     */
+    public String getContextPath();
+    /**
+     * Get the latencies of the servlets and filters that were called. The names are the servlet and filter names,
+     * prefixed by "servlet:" and "filter:".
+     *
+     * @return The latencies by name, sorted on name
+     */
+    public Map<String, Latency> getLatencies();
+}
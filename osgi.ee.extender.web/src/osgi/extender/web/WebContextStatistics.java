@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web;
+
+import java.util.Map;
+
+/**
+ * Statistics of a web context. The web extender registers a service with this interface for every web context
+ * it runs, with the same "osgi.web.contextpath" property as the servlet context service, so monitoring
+ * bundles can pick up the values.
+ */
+public interface WebContextStatistics {
+    /**
+     * Get the context path of the web context the statistics are for.
+     *
+     * @return The context path, like "/MyContext"
+     */
+    public String getContextPath();
+    /**
+     * Get the current value of the counters of the web context.
+     *
+     * @return A map with the counter name as key and its current value, sorted on name
+     */
+    public Map<String, Long> getCounters();
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+
+import osgi.extender.web.servlet.OurServletContext;
+
+/**
+ * Cache of the parsed descriptors of web bundles, kept in the data area of the web extender bundle, so a restart
+ * of the framework doesn't parse unchanged descriptors again. There is a file per bundle, holding the web.xml
+ * descriptor and the listener classes from the tag library descriptors in binary form. An entry is valid for the
+ * same last modification time of the bundle, the same hash of the web.xml file and the same dependencies, since
+ * the tag library descriptors are found in the dependencies as well.
+ */
+class DescriptorCache {
+    private static final int FORMAT = 2;
+    private static DescriptorCache instance;
+    private BundleContext bundleContext;
+    private File directory;
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+
+    /**
+     * The cached results for a bundle.
+     */
+    static class Entry {
+        WebAppDescriptor descriptor;
+        final List<String> tldListeners = new ArrayList<>();
+    }
+
+    /**
+     * The key of an entry. Only the latest entry of a bundle is kept.
+     */
+    static class Key {
+        private long bundleId;
+        private long lastModified;
+        private String path;
+        private long hash;
+        private long dependencies;
+
+        /**
+         * Create the key for a bundle.
+         *
+         * @param bundle The bundle
+         * @param path The path of the web.xml file in the bundle, null if there is none
+         * @param hash The hash of the web.xml file
+         * @param dependencies The bundles in which the tag library descriptors are found
+         */
+        Key(Bundle bundle, String path, long hash, Collection<Bundle> dependencies) {
+            bundleId = bundle.getBundleId();
+            lastModified = bundle.getLastModified();
+            this.path = path == null ? "" : path;
+            this.hash = hash;
+            // Independent of the order of the bundles.
+            for (Bundle b : dependencies) {
+                this.dependencies += (b.getBundleId() * 0x9E3779B97F4A7C15L) ^ b.getLastModified();
+            }
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(FORMAT);
+            out.writeLong(lastModified);
+            out.writeUTF(path);
+            out.writeLong(hash);
+            out.writeLong(dependencies);
+        }
+
+        private boolean matches(DataInputStream in) throws IOException {
+            return in.readInt() == FORMAT && in.readLong() == lastModified && in.readUTF().equals(path) &&
+                    in.readLong() == hash && in.readLong() == dependencies;
+        }
+    }
+
+    private DescriptorCache(BundleContext context, File directory) {
+        bundleContext = context;
+        this.directory = directory;
+    }
+
+    /**
+     * Get the cache of the web extender. Entries of bundles that are no longer installed are removed the first time.
+     *
+     * @return The cache, null if the extender bundle isn't active or has no data area
+     */
+    static synchronized DescriptorCache instance() {
+        Bundle bundle = FrameworkUtil.getBundle(DescriptorCache.class);
+        if (bundle == null || bundle.getBundleContext() == null) {
+            return null;
+        }
+        // The extender may have been restarted.
+        if (instance == null || instance.bundleContext != bundle.getBundleContext()) {
+            BundleContext context = bundle.getBundleContext();
+            File directory = context.getDataFile("descriptors");
+            if (directory == null || (!directory.isDirectory() && !directory.mkdirs())) {
+                return null;
+            }
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    try {
+                        if (context.getBundle(Long.parseLong(f.getName())) == null) {
+                            f.delete();
+                        }
+                    } catch (NumberFormatException exc) {
+                        f.delete();
+                    }
+                }
+            }
+            instance = new DescriptorCache(context, directory);
+        }
+        return instance;
+    }
+
+    /**
+     * Get the cached entry for a bundle.
+     *
+     * @param key The key of the entry
+     * @return The entry, null if it isn't cached or outdated
+     */
+    Entry get(Key key) {
+        File file = new File(directory, Long.toString(key.bundleId));
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (key.matches(in)) {
+                    Entry entry = new Entry();
+                    entry.descriptor = in.readBoolean() ? WebAppDescriptor.read(in) : null;
+                    WebAppDescriptor.readList(in, entry.tldListeners);
+                    hits.increment();
+                    return entry;
+                }
+            } catch (IOException exc) {
+                // Corrupt, it is replaced.
+                exc.printStackTrace();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store the entry for a bundle. The file is replaced atomically, so a concurrent restart never sees a partial entry.
+     *
+     * @param key The key of the entry
+     * @param entry The entry
+     */
+    void put(Key key, Entry entry) {
+        File file = new File(directory, Long.toString(key.bundleId));
+        File temp = new File(directory, key.bundleId + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                key.write(out);
+                out.writeBoolean(entry.descriptor != null);
+                if (entry.descriptor != null) {
+                    entry.descriptor.write(out);
+                }
+                WebAppDescriptor.writeList(out, entry.tldListeners);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exc) {
+            exc.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    /**
+     * Register the cache values with the statistics of a context.
+     *
+     * @param context The context
+     */
+    void register(OurServletContext context) {
+        context.registerStatistic("descriptorcache.hits", hits::sum);
+        context.registerStatistic("descriptorcache.misses", misses::sum);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import osgi.extender.web.SessionStore;
+
+/**
+ * Session store that keeps every session in a file, with a directory per context. It is meant for a single node
+ * or for testing the session store contract, not for production clusters. A file starts with the version and the
+ * times of the session, followed by the number of attributes and every attribute as name, length and data. Files
+ * are replaced atomically.
+ * The web extender registers it when the framework property "osgi.extender.web.sessionstore.file" is set to true.
+ */
+public class FileSessionStore implements SessionStore {
+    private File directory;
+
+    public FileSessionStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the file of a session. The session identifier comes from a cookie, so it is checked to contain only
+     * characters that are safe for a file name.
+     *
+     * @return The file, null if the identifier is invalid
+     */
+    private File file(String contextPath, String id) {
+        if (id.isEmpty() || !id.chars().allMatch((c) -> Character.isLetterOrDigit(c) || c == '.' || c == '-')) {
+            return null;
+        }
+        return new File(directory(contextPath), id);
+    }
+
+    /**
+     * Get the directory of a context, named by the hexadecimal form of the context path.
+     */
+    private File directory(String contextPath) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : contextPath.getBytes(StandardCharsets.UTF_8)) {
+            name.append(String.format("%02x", b));
+        }
+        return new File(directory, name.toString());
+    }
+
+    @Override
+    public synchronized long getVersion(String contextPath, String id) {
+        File file = file(contextPath, id);
+        if (file == null || !file.exists()) {
+            return -1;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readLong();
+        } catch (IOException exc) {
+            exc.printStackTrace();
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized Map<String, byte[]> load(String contextPath, String id) {
+        File file = file(contextPath, id);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            Map<String, byte[]> attributes = new HashMap<>();
+            read(file, attributes);
+            return attributes;
+        } catch (IOException exc) {
+            exc.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized Times getTimes(String contextPath, String id) {
+        File file = file(contextPath, id);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            return times(file);
+        } catch (IOException exc) {
+            exc.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized long store(String contextPath, String id, Times times, Map<String, byte[]> changed,
+            Set<String> removed) {
+        File file = file(contextPath, id);
+        if (file == null) {
+            throw new IllegalArgumentException("invalid session identifier: " + id);
+        }
+        try {
+            Map<String, byte[]> attributes = new HashMap<>();
+            long version = file.exists() ? read(file, attributes) : 0;
+            if (version == 0 || !changed.isEmpty() || !removed.isEmpty()) {
+                version++;
+            }
+            attributes.keySet().removeAll(removed);
+            attributes.putAll(changed);
+            file.getParentFile().mkdirs();
+            File temp = new File(file.getParentFile(), id + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeLong(version);
+                out.writeLong(times.created);
+                out.writeLong(times.lastAccessed);
+                out.writeLong(times.expiry);
+                out.writeInt(attributes.size());
+                for (Map.Entry<String, byte[]> entry : attributes.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    out.write(entry.getValue());
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return version;
+        } catch (IOException exc) {
+            throw new RuntimeException(exc);
+        }
+    }
+
+    @Override
+    public synchronized void remove(String contextPath, String id) {
+        File file = file(contextPath, id);
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    @Override
+    public synchronized void removeExpired(String contextPath, long now) {
+        File[] files = directory(contextPath).listFiles((f) -> !f.getName().endsWith(".tmp"));
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            try {
+                if (times(f).expiry <= now) {
+                    f.delete();
+                }
+            } catch (IOException exc) {
+                exc.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Read the times of a session file.
+     */
+    private static Times times(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readLong();
+            return new Times(in.readLong(), in.readLong(), in.readLong());
+        }
+    }
+
+    /**
+     * Read the attributes of a session file.
+     *
+     * @return The version of the session
+     */
+    private static long read(File file, Map<String, byte[]> attributes) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long version = in.readLong();
+            // The times are replaced on every write.
+            in.skipBytes(3 * 8);
+            int count = in.readInt();
+            for (int cnt = 0; cnt < count; cnt++) {
+                String name = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                attributes.put(name, data);
+            }
+            return version;
+        }
+    }
+}
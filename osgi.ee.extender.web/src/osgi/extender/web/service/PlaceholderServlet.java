@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.service;
+
+import java.io.IOException;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import osgi.extender.web.servlet.DispatchingServlet;
+
+/**
+ * Servlet that is registered for a web context, so the registration at the http service doesn't initialize the
+ * context. In lazy mode, the web context is only created and initialized on the first request, or earlier when
+ * activated in the background. Otherwise it is activated right after the registration. Concurrent first requests
+ * wait for the single initialization. If the initialization fails, the requests are answered with "service
+ * unavailable".
+ */
+class PlaceholderServlet implements Servlet {
+    private Factory factory;
+    private ServletConfig config;
+    private volatile DispatchingServlet servlet;
+    private boolean failed;
+    private boolean destroyed;
+
+    /**
+     * Creation of the actual servlet of the context.
+     */
+    interface Factory {
+        DispatchingServlet create() throws Exception;
+    }
+
+    PlaceholderServlet(Factory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public void init(ServletConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Create and initialize the servlet of the context, if not done yet.
+     *
+     * @return The servlet, null if the initialization failed or the placeholder is destroyed
+     */
+    DispatchingServlet activate() {
+        DispatchingServlet current = servlet;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (servlet == null && !failed && !destroyed) {
+                try {
+                    DispatchingServlet created = factory.create();
+                    created.init(config);
+                    servlet = created;
+                } catch (Throwable exc) {
+                    failed = true;
+                    config.getServletContext().log("activation of a web context failed", exc);
+                }
+            }
+            return servlet;
+        }
+    }
+
+    @Override
+    public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException {
+        DispatchingServlet current = activate();
+        if (current == null) {
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        current.service(request, response);
+    }
+
+    @Override
+    public synchronized void destroy() {
+        destroyed = true;
+        if (servlet != null) {
+            servlet.destroy();
+            servlet = null;
+        }
+    }
+
+    @Override
+    public ServletConfig getServletConfig() {
+        return config;
+    }
+
+    @Override
+    public String getServletInfo() {
+        return "OSGi/JEE placeholder servlet";
+    }
+}
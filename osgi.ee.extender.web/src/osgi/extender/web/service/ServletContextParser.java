@@ -17,60 +17,30 @@ package osgi.extender.web.service;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Consumer;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.FilterRegistration;
 import javax.servlet.ServletRegistration;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.namespace.NamespaceContext;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
 
-import org.jcp.xmlns.xml.ns.javaee.ErrorPageType;
-import org.jcp.xmlns.xml.ns.javaee.FilterMappingType;
-import org.jcp.xmlns.xml.ns.javaee.FilterType;
-import org.jcp.xmlns.xml.ns.javaee.ListenerType;
-import org.jcp.xmlns.xml.ns.javaee.ParamValueType;
-import org.jcp.xmlns.xml.ns.javaee.ServletMappingType;
-import org.jcp.xmlns.xml.ns.javaee.ServletNameType;
-import org.jcp.xmlns.xml.ns.javaee.ServletType;
-import org.jcp.xmlns.xml.ns.javaee.SessionConfigType;
-import org.jcp.xmlns.xml.ns.javaee.UrlPatternType;
-import org.jcp.xmlns.xml.ns.javaee.WebAppType;
-import org.jcp.xmlns.xml.ns.javaee.WelcomeFileListType;
 import org.osgi.framework.Bundle;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
 
 import osgi.extender.helpers.DelegatingClassLoader;
 import osgi.extender.web.WebContextDefinition;
 import osgi.extender.web.servlet.DispatchingServlet;
 import osgi.extender.web.servlet.OurServletContext;
+import osgi.extender.web.servlet.support.DynamicSRegistration;
 import osgi.extender.web.servlet.support.FRegistration;
-import osgi.extender.web.servlet.support.SRegistration;
 
 /**
  * Parser for a web.xml like file somewhere in a bundle. Only the minimum number of elements are actually parsed, meaning that
@@ -84,110 +54,146 @@ class ServletContextParser {
         Map<Integer, String> httpErrorPages = new HashMap<>();
         Map<Class<?>, String> exceptionPages = new LinkedHashMap<>();
         List<String> welcomePages = new ArrayList<>();
+        byte[] webxml = null;
         if (definition.getDefinition() != null) {
-            URL webxml = bundle.getEntry(definition.getDefinition());
-            if (webxml == null) {
+            URL url = bundle.getEntry(definition.getDefinition());
+            if (url == null) {
                 throw new Exception("cannot find " + definition.getDefinition() + " for bundle: " + bundle);
             }
-            parseFile(webxml, context, welcomePages, httpErrorPages, exceptionPages);
+            webxml = read(url);
         }
-        loadTLDListeners(bundle).forEach((l) -> context.addListener(l));
+        DescriptorCache.Entry entry = parse(bundle, definition.getDefinition(), webxml, context);
+        if (entry.descriptor != null) {
+            apply(entry.descriptor, context, welcomePages, httpErrorPages, exceptionPages);
+        }
+        entry.tldListeners.forEach((l) -> context.addListener(l));
         return new DispatchingServlet(context, welcomePages, httpErrorPages, exceptionPages);
     }
 
+    private static byte[] read(URL url) throws IOException {
+        try (InputStream in = url.openStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] data = new byte[8192];
+            int read;
+            while ((read = in.read(data)) > 0) {
+                out.write(data, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
     /**
-     * Perform some actions with a specific elements set from the webapp definition.
+     * Get the parsed descriptors of a bundle, from the descriptor cache if the bundle didn't change.
      *
-     * @param elements The elements from the web-app definition
-     * @param nameMatcher A matcher for the names
-     * @param acceptor The consumer of the matching elements
+     * @param bundle The web bundle
+     * @param path The path of the web.xml file, null if there is none
+     * @param webxml The contents of the web.xml file, null if there is none
+     * @param context The context, to register the cache statistics with
+     * @return The parsed descriptors
+     * @throws IOException In case of errors parsing the web.xml file
      */
-    private static void doWith(Collection<JAXBElement<?>> elements, Predicate<String> nameMatcher, Consumer<Object> acceptor) {
-        elements.stream().filter((jbe) -> nameMatcher.test(jbe.getName().getLocalPart())).forEach((jbe) -> acceptor.accept(jbe.getValue()));
+    private static DescriptorCache.Entry parse(Bundle bundle, String path, byte[] webxml, OurServletContext context)
+            throws IOException {
+        DescriptorCache cache = DescriptorCache.instance();
+        DescriptorCache.Key key = null;
+        if (cache != null) {
+            cache.register(context);
+            CRC32 crc = new CRC32();
+            if (webxml != null) {
+                crc.update(webxml);
+            }
+            key = new DescriptorCache.Key(bundle, path, crc.getValue(), DelegatingClassLoader.allOf(bundle));
+            DescriptorCache.Entry entry = cache.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        DescriptorCache.Entry entry = new DescriptorCache.Entry();
+        entry.descriptor = webxml == null ? null : WebAppDescriptor.parse(new ByteArrayInputStream(webxml));
+        entry.tldListeners.addAll(loadTLDListeners(bundle));
+        if (cache != null) {
+            cache.put(key, entry);
+        }
+        return entry;
     }
 
     /**
-     * Parse context parameters.
+     * Set the context parameters.
      *
-     * @param elements The elements from the web definition
+     * @param descriptor The web app definition
      * @param handler The servlet context that will in the end contain the information
      */
-    private static void parseParameters(Collection<JAXBElement<?>> elements, OurServletContext handler) {
-        doWith(elements, (name) -> "context-param".equals(name), (o) -> {
-            ParamValueType parameter = (ParamValueType) o;
-            handler.setInitParameter(parameter.getParamName().getValue(), parameter.getParamValue().getValue());
-        });
+    private static void addParameters(WebAppDescriptor descriptor, OurServletContext handler) {
+        descriptor.contextParams.forEach((name, value) -> handler.setInitParameter(name, value));
     }
 
     /**
-     * Parse the servlets from the context definition. This means: the definition of the servlet names and classes as well
+     * Add the servlets from the context definition. This means: the definition of the servlet names and classes as well
      * as the mapping that is present for the servlets.
      *
-     * @param elements The web app elements
+     * @param descriptor The web app definition
      * @param handler The servlet context that accepts the information
      */
-    private static void parseServlets(Collection<JAXBElement<?>> elements, OurServletContext handler) {
-        doWith(elements, (n) -> "servlet".equals(n), (o) -> {
-           ServletType type = (ServletType) o;
-           SRegistration holder = handler.addServlet(type.getServletName().getValue(), type.getServletClass().getValue());
-           type.getInitParam().forEach((parameter) ->
-               holder.setInitParameter(parameter.getParamName().getValue(), parameter.getParamValue().getValue()));
+    private static void addServlets(WebAppDescriptor descriptor, OurServletContext handler) {
+        descriptor.servlets.forEach((servlet) -> {
+           DynamicSRegistration holder = handler.addServlet(servlet.name, servlet.className);
+           servlet.initParams.forEach((name, value) -> holder.setInitParameter(name, value));
+           if (servlet.asyncSupported != null) {
+               holder.setAsyncSupported(servlet.asyncSupported);
+           }
+           if (servlet.loadOnStartup != null) {
+               holder.setLoadOnStartup(servlet.loadOnStartup);
+           }
         });
-        doWith(elements, (n) -> "servlet-mapping".equals(n), (o) -> {
-           ServletMappingType type = (ServletMappingType) o;
-           String name = type.getServletName().getValue();
-           ServletRegistration reg = handler.getServletRegistration(name);
+        descriptor.servletMappings.forEach((mapping) -> {
+           ServletRegistration reg = handler.getServletRegistration(mapping.name);
            if (reg == null) {
-               throw new RuntimeException("invalid servlet-mapping definition: servlet \"" + name + "s\" not found");
+               throw new RuntimeException("invalid servlet-mapping definition: servlet \"" + mapping.name + "\" not found");
            }
-           type.getUrlPattern().stream().map((ut) -> ut.getValue()).forEach((m) -> reg.addMapping(m));
+           mapping.urlPatterns.forEach((m) -> reg.addMapping(m));
         });
     }
 
     /**
-     * Parse the filters from the context definition. This means: the filter names and classes as well as the mapping that is present
+     * Add the filters from the context definition. This means: the filter names and classes as well as the mapping that is present
      * for the filters (to either servlets or url paths).
      *
-     * @param elements The web app definition elements
+     * @param descriptor The web app definition
      * @param handler The servlet context in which the definition is made
      */
-    private static void parseFilters(Collection<JAXBElement<?>> elements, OurServletContext handler) {
-        doWith(elements, (n) -> "filter".equals(n), (o) -> {
-           FilterType filterType = (FilterType) o;
-           FRegistration holder = handler.addFilter(filterType.getFilterName().getValue(), filterType.getFilterClass().getValue());
-           filterType.getInitParam().forEach((parameter) ->
-               holder.setInitParameter(parameter.getParamName().getValue(), parameter.getParamValue().getValue()));
+    private static void addFilters(WebAppDescriptor descriptor, OurServletContext handler) {
+        descriptor.filters.forEach((filter) -> {
+           FRegistration holder = handler.addFilter(filter.name, filter.className);
+           filter.initParams.forEach((name, value) -> holder.setInitParameter(name, value));
+           if (filter.asyncSupported != null) {
+               holder.setAsyncSupported(filter.asyncSupported);
+           }
         });
-        doWith(elements, (n) -> "filter-mapping".equals(n), (o) -> {
-            FilterMappingType mapping = (FilterMappingType) o;
-            String name = mapping.getFilterName().getValue();
-            FilterRegistration reg = handler.getFilterRegistration(name);
+        descriptor.filterMappings.forEach((mapping) -> {
+            FilterRegistration reg = handler.getFilterRegistration(mapping.name);
             if (reg == null) {
-                throw new RuntimeException("invalid filter-mapping definition: filter \"" + name + "\" not found");
+                throw new RuntimeException("invalid filter-mapping definition: filter \"" + mapping.name + "\" not found");
+            }
+            // Without dispatcher elements, the mapping applies to requests only.
+            EnumSet<DispatcherType> types = EnumSet.noneOf(DispatcherType.class);
+            mapping.dispatchers.forEach((d) -> types.add(DispatcherType.valueOf(d)));
+            if (types.isEmpty()) {
+                types.add(DispatcherType.REQUEST);
             }
-            List<String> urlMappings = mapping.getUrlPatternOrServletName().stream().
-                filter((obj) -> UrlPatternType.class.isAssignableFrom(obj.getClass())).
-                map((c) -> UrlPatternType.class.cast(c)).map((c) -> c.getValue()).collect(Collectors.toList());
-            reg.addMappingForUrlPatterns(EnumSet.allOf(DispatcherType.class), true, urlMappings.toArray(new String[urlMappings.size()]));
-            List<String> servletMappings = mapping.getUrlPatternOrServletName().stream().
-                    filter((obj) -> ServletNameType.class.isAssignableFrom(obj.getClass())).
-                    map((c) -> ServletNameType.class.cast(c)).map((c) -> c.getValue()).collect(Collectors.toList());
-            reg.addMappingForServletNames(EnumSet.allOf(DispatcherType.class), true, servletMappings.toArray(new String[servletMappings.size()]));
+            reg.addMappingForUrlPatterns(types, true, mapping.urlPatterns.toArray(new String[mapping.urlPatterns.size()]));
+            reg.addMappingForServletNames(types, true,
+                    mapping.servletNames.toArray(new String[mapping.servletNames.size()]));
         });
     }
 
     /**
-     * Parse the listener classes from the servlet context.
+     * Add the listener classes to the servlet context.
      *
-     * @param elements The web-app elements
+     * @param descriptor The web app definition
      * @param handler The context that receives the listeners
      */
-    private static void parseListeners(Collection<JAXBElement<?>> elements, OurServletContext handler) {
-        doWith(elements, (n) -> "listener".equals(n), (o) -> {
-            ListenerType listener = (ListenerType) o;
-            String clz = listener.getListenerClass().getValue();
-            handler.addListener(clz);
-        });
+    private static void addListeners(WebAppDescriptor descriptor, OurServletContext handler) {
+        descriptor.listeners.forEach((clz) -> handler.addListener(clz));
     }
 
     private static String parseLocation(String location) {
@@ -195,143 +201,74 @@ class ServletContextParser {
     }
 
     /**
-     * Parse the welcome file definitions and return them.
+     * Add the welcome file definitions.
      *
-     * @param elements The web app elements
+     * @param descriptor The web app definition
      * @param welcomeFiles The welcome files, filled
      */
-    private static void parseWelcomeFiles(Collection<JAXBElement<?>> elements,
-            final Collection<String> welcomeFiles) {
-        doWith(elements, (n) -> "welcome-file-list".equals(n), (o) -> {
-            WelcomeFileListType welcomes = (WelcomeFileListType) o;
-            welcomes.getWelcomeFile().forEach((w) -> welcomeFiles.add(parseLocation(w)));
-        });
+    private static void addWelcomeFiles(WebAppDescriptor descriptor, final Collection<String> welcomeFiles) {
+        descriptor.welcomeFiles.forEach((w) -> welcomeFiles.add(parseLocation(w)));
     }
 
     /**
-     * Parse the error pages for exceptions and HTTP errors.
+     * Add the error pages for exceptions and HTTP errors.
      *
-     * @param elements The elements to parse
+     * @param descriptor The web app definition
      * @param loader The class loader for class loading
      * @param errorPages Error pages map, filled
      * @param exceptionPages Exception pages map, filled
      */
-    private static void parseErrorPages(Collection<JAXBElement<?>> elements,
+    private static void addErrorPages(WebAppDescriptor descriptor,
             ClassLoader loader, Map<Integer, String> errorPages, Map<Class<?>, String> exceptionPages) {
-        doWith(elements, (n) -> "error-page".equals(n), (o) -> {
-            ErrorPageType errors = (ErrorPageType) o;
-            if (errors.getErrorCode() != null) {
-                Integer key = new Integer(errors.getErrorCode().getValue().toString());
-                errorPages.put(key, parseLocation(errors.getLocation().getValue()));
+        descriptor.errorPages.forEach((page) -> {
+            if (page.errorCode != null) {
+                errorPages.put(page.errorCode, parseLocation(page.location));
             }
             else {
                 Class<?> clz;
                 try {
-                    clz = loader.loadClass(errors.getExceptionType().getValue());
+                    clz = loader.loadClass(page.exceptionType);
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 }
-                exceptionPages.put(clz, parseLocation(errors.getLocation().getValue()));
+                exceptionPages.put(clz, parseLocation(page.location));
             }
         });
     }
 
-    private static void parseSessionConfig(Collection<JAXBElement<?>> elements, OurServletContext context) {
-        doWith(elements, (n) -> "session-config".equals(n), (o) -> {
-            SessionConfigType config = (SessionConfigType) o;
-            if (config.getSessionTimeout() != null) {
-                context.setMaxInactive(new Integer(config.getSessionTimeout().getValue().toString()));
-            }
-        });
+    private static void setSessionConfig(WebAppDescriptor descriptor, OurServletContext context) {
+        if (descriptor.sessionTimeout != null) {
+            context.setMaxInactive(descriptor.sessionTimeout);
+        }
     }
 
     /**
-     * Parse a web-app definition file.
+     * Apply a web-app definition.
      *
-     * @param url The URL pointing to the web-app definition
+     * @param descriptor The parsed web-app definition
      * @param handler The servlet context to fill
      * @param welcomes The welcome file list, returned
      * @param errorPages The error page mapping, returned
      * @param exceptionPages The exception page mapping, returned
-     * @throws Exception In case of errors
-     */
-    private static void parseFile(URL url, OurServletContext handler, Collection<String> welcomes,
-            Map<Integer, String> errorPages, Map<Class<?>, String> exceptionPages) throws Exception {
-        // We first do a transformation to allow acceptance of the old-style namespace for
-        // web applications.
-        String xslt = "/" + ServletContextParser.class.getPackage().getName().replace(".", "/") +
-                "/translatens.xsl";
-        Transformer trans = TransformerFactory.newInstance().newTransformer(
-                new StreamSource(ServletContextParser.class.getClassLoader().getResourceAsStream(xslt)));
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        trans.transform(new StreamSource(url.openStream()), new StreamResult(out));
-        // Do the JAXB parsing of the input.
-        JAXBContext context = JAXBContext.newInstance(WebAppType.class);
-        Unmarshaller unm = context.createUnmarshaller();
-        JAXBElement<?> element = (JAXBElement<?>) unm.unmarshal(new ByteArrayInputStream(out.toByteArray()));
-        WebAppType type = (WebAppType) element.getValue();
-        // Process the elements.
-        Collection<JAXBElement<?>> elements = type.getModuleNameOrDescriptionAndDisplayName();
-        parseParameters(elements, handler);
-        parseListeners(elements, handler);
-        parseServlets(elements, handler);
-        parseFilters(elements, handler);
-        parseWelcomeFiles(elements, welcomes);
-        parseErrorPages(elements, handler.getClassLoader(), errorPages, exceptionPages);
-        parseSessionConfig(elements, handler);
-    }
-
-    /**
-     * Parse a TLD, tag library descriptor from one of the META-INF directories of the
-     * dependencies/local bundles.
-     *
-     * @param url The URL to parse
-     * @param toReturn List where the found listener classes are written
      */
-    private static void parseTLD(URL url, Collection<String> toReturn) {
-        try {
-            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            Document document = builder.parse(url.toExternalForm());
-            XPath path = XPathFactory.newInstance().newXPath();
-            path.setNamespaceContext(new NamespaceContext() {
-                @Override
-                public Iterator<?> getPrefixes(String namespaceURI) {
-                    return Arrays.asList("").iterator();
-                }
-                @Override
-                public String getPrefix(String namespaceURI) {
-                    return "";
-                }
-                @Override
-                public String getNamespaceURI(String prefix) {
-                    return "http://java.sun.com/xml/ns/javaee";
-                }
-            });
-            NodeList list = (NodeList) path.evaluate("//listener/listener-class/text()", document,
-                    XPathConstants.NODESET);
-            for (int cnt = 0; cnt < list.getLength(); cnt++) {
-                String className = list.item(cnt).getTextContent();
-                toReturn.add(className);
-            }
-        } catch (Exception exc) {
-            exc.printStackTrace();
-        }
+    private static void apply(WebAppDescriptor descriptor, OurServletContext handler, Collection<String> welcomes,
+            Map<Integer, String> errorPages, Map<Class<?>, String> exceptionPages) {
+        addParameters(descriptor, handler);
+        addListeners(descriptor, handler);
+        addServlets(descriptor, handler);
+        addFilters(descriptor, handler);
+        addWelcomeFiles(descriptor, welcomes);
+        addErrorPages(descriptor, handler.getClassLoader(), errorPages, exceptionPages);
+        setSessionConfig(descriptor, handler);
     }
 
     /**
-     * Load the listener classes from the tag library descriptors.
+     * Load the listener classes from the tag library descriptors, as found by the index of the extender.
      *
      * @param bundle The bundle to parse (+ its dependencies)
      * @return A collection with listener class names
      */
     private static Collection<String> loadTLDListeners(Bundle bundle) {
-        Collection<Bundle> bundles = DelegatingClassLoader.allOf(bundle);
-        Collection<URL> urlsToParse = bundles.stream().
-            map((b) -> b.findEntries("META-INF", "*.tld", true)).
-            filter((e) -> e != null).
-            map((e) -> Collections.list(e)).flatMap((c) -> c.stream()).collect(Collectors.toList());
-        ArrayList<String> toReturn = new ArrayList<>();
-        urlsToParse.forEach((u) -> parseTLD(u, toReturn));
-        return toReturn;
+        return TLDIndex.instance().listeners(DelegatingClassLoader.allOf(bundle));
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.service;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.util.tracker.BundleTrackerCustomizer;
+
+/**
+ * Framework wide index of the listener classes declared in the tag library descriptors (META-INF/**&#47;*.tld) of
+ * the bundles. The descriptors of a bundle are parsed once per bundle revision, the first time the bundle is looked
+ * up, with a streaming parser. Web bundles that share dependencies therefore share the parsing. The index is kept
+ * up-to-date by a bundle tracker of the extender, which drops the entries of bundles that are no longer resolved.
+ */
+public class TLDIndex implements BundleTrackerCustomizer<Bundle> {
+    private static final TLDIndex INSTANCE = new TLDIndex();
+    private Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        private BundleRevision revision;
+        private List<String> listeners;
+
+        Entry(BundleRevision revision, List<String> listeners) {
+            this.revision = revision;
+            this.listeners = listeners;
+        }
+    }
+
+    private TLDIndex() {
+    }
+
+    /**
+     * Get the index, to be tracking the bundles of the framework.
+     *
+     * @return The index
+     */
+    public static TLDIndex instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the listener classes of the tag library descriptors of bundles.
+     *
+     * @param bundles The bundles
+     * @return The listener class names
+     */
+    Collection<String> listeners(Collection<Bundle> bundles) {
+        List<String> listeners = new ArrayList<>();
+        bundles.forEach((b) -> listeners.addAll(listeners(b)));
+        return listeners;
+    }
+
+    private List<String> listeners(Bundle bundle) {
+        BundleRevision revision = bundle.adapt(BundleRevision.class);
+        // Parsed within the computation, so concurrent lookups of the same bundle parse once.
+        return entries.compute(bundle.getBundleId(), (id, entry) -> entry != null && entry.revision == revision ?
+                entry : new Entry(revision, parse(bundle))).listeners;
+    }
+
+    /**
+     * Parse the tag library descriptors of a bundle.
+     */
+    private static List<String> parse(Bundle bundle) {
+        Enumeration<URL> urls = bundle.findEntries("META-INF", "*.tld", true);
+        if (urls == null) {
+            return Collections.emptyList();
+        }
+        List<String> listeners = new ArrayList<>();
+        Collections.list(urls).forEach((u) -> parse(u, listeners));
+        return Collections.unmodifiableList(listeners);
+    }
+
+    /**
+     * Parse a tag library descriptor: the listener classes are the contents of listener-class elements within
+     * listener elements.
+     */
+    private static void parse(URL url, Collection<String> listeners) {
+        try (InputStream in = url.openStream()) {
+            XMLStreamReader reader = WebAppDescriptor.FACTORY.createXMLStreamReader(in);
+            try {
+                boolean listener = false;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if ("listener".equals(reader.getLocalName())) {
+                            listener = true;
+                        }
+                        else if (listener && "listener-class".equals(reader.getLocalName())) {
+                            listeners.add(reader.getElementText().trim());
+                        }
+                    }
+                    else if (event == XMLStreamConstants.END_ELEMENT && "listener".equals(reader.getLocalName())) {
+                        listener = false;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception exc) {
+            exc.printStackTrace();
+        }
+    }
+
+    @Override
+    public Bundle addingBundle(Bundle bundle, BundleEvent event) {
+        return bundle;
+    }
+
+    @Override
+    public void modifiedBundle(Bundle bundle, BundleEvent event, Bundle object) {
+        // A new revision is detected on lookup.
+    }
+
+    @Override
+    public void removedBundle(Bundle bundle, BundleEvent event, Bundle object) {
+        entries.remove(bundle.getBundleId());
+    }
+}
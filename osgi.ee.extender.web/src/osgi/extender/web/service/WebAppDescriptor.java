@@ -0,0 +1,448 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The parts of a web.xml file that are used by the extender. The file is parsed in a single pass with a streaming
+ * parser. Both the Java EE namespace and the older Sun namespace are accepted, as well as descriptors without a
+ * namespace. All other elements, like descriptions, are skipped. A descriptor can be written in a compact binary
+ * form, for the descriptor cache.
+ */
+class WebAppDescriptor {
+    private static final Collection<String> NAMESPACES = Arrays.asList("http://xmlns.jcp.org/xml/ns/javaee",
+            "http://java.sun.com/xml/ns/javaee", "");
+    static final XMLInputFactory FACTORY = factory();
+    final Map<String, String> contextParams = new LinkedHashMap<>();
+    final List<String> listeners = new ArrayList<>();
+    final List<Component> servlets = new ArrayList<>();
+    final List<Mapping> servletMappings = new ArrayList<>();
+    final List<Component> filters = new ArrayList<>();
+    final List<Mapping> filterMappings = new ArrayList<>();
+    final List<String> welcomeFiles = new ArrayList<>();
+    final List<ErrorPage> errorPages = new ArrayList<>();
+    Integer sessionTimeout;
+
+    /**
+     * A servlet or filter. Only servlets have a load-on-startup value.
+     */
+    static class Component {
+        String name;
+        String className;
+        final Map<String, String> initParams = new LinkedHashMap<>();
+        Boolean asyncSupported;
+        Integer loadOnStartup;
+    }
+
+    /**
+     * A servlet or filter mapping. Servlet mappings only have URL patterns.
+     */
+    static class Mapping {
+        String name;
+        final List<String> urlPatterns = new ArrayList<>();
+        final List<String> servletNames = new ArrayList<>();
+        final List<String> dispatchers = new ArrayList<>();
+    }
+
+    /**
+     * An error page, either for an error code or for an exception type.
+     */
+    static class ErrorPage {
+        Integer errorCode;
+        String exceptionType;
+        String location;
+    }
+
+    private interface ChildHandler {
+        void handle(String name) throws XMLStreamException;
+    }
+
+    private static XMLInputFactory factory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Parse a web.xml file.
+     *
+     * @param in The input stream with the file, not closed
+     * @return The descriptor
+     * @throws IOException In case of I/O or parse errors
+     */
+    static WebAppDescriptor parse(InputStream in) throws IOException {
+        WebAppDescriptor descriptor = new WebAppDescriptor();
+        try {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                reader.nextTag();
+                String namespace = reader.getNamespaceURI() == null ? "" : reader.getNamespaceURI();
+                if (!"web-app".equals(reader.getLocalName()) || !NAMESPACES.contains(namespace)) {
+                    throw new IOException("not a web application descriptor: {" + namespace + "}" +
+                            reader.getLocalName());
+                }
+                children(reader, (n) -> descriptor.element(reader, n));
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException exc) {
+            throw new IOException(exc);
+        }
+        return descriptor;
+    }
+
+    /**
+     * Handle a child element of the web-app element.
+     */
+    private void element(XMLStreamReader reader, String name) throws XMLStreamException {
+        switch (name) {
+        case "context-param":
+            param(reader, contextParams);
+            break;
+        case "listener":
+            children(reader, (n) -> {
+                if ("listener-class".equals(n)) {
+                    listeners.add(text(reader));
+                }
+                else {
+                    skip(reader);
+                }
+            });
+            break;
+        case "servlet":
+            servlets.add(component(reader, "servlet-name", "servlet-class"));
+            break;
+        case "servlet-mapping":
+            servletMappings.add(mapping(reader, "servlet-name"));
+            break;
+        case "filter":
+            filters.add(component(reader, "filter-name", "filter-class"));
+            break;
+        case "filter-mapping":
+            filterMappings.add(mapping(reader, "filter-name"));
+            break;
+        case "welcome-file-list":
+            children(reader, (n) -> {
+                if ("welcome-file".equals(n)) {
+                    welcomeFiles.add(text(reader));
+                }
+                else {
+                    skip(reader);
+                }
+            });
+            break;
+        case "error-page":
+            ErrorPage page = new ErrorPage();
+            children(reader, (n) -> {
+                switch (n) {
+                case "error-code":
+                    page.errorCode = number(reader, null);
+                    break;
+                case "exception-type":
+                    page.exceptionType = text(reader);
+                    break;
+                case "location":
+                    page.location = text(reader);
+                    break;
+                default:
+                    skip(reader);
+                }
+            });
+            errorPages.add(page);
+            break;
+        case "session-config":
+            children(reader, (n) -> {
+                if ("session-timeout".equals(n)) {
+                    sessionTimeout = number(reader, null);
+                }
+                else {
+                    skip(reader);
+                }
+            });
+            break;
+        default:
+            skip(reader);
+        }
+    }
+
+    private static Component component(XMLStreamReader reader, String nameElement, String classElement)
+            throws XMLStreamException {
+        Component component = new Component();
+        children(reader, (n) -> {
+            if (nameElement.equals(n)) {
+                component.name = text(reader);
+            }
+            else if (classElement.equals(n)) {
+                component.className = text(reader);
+            }
+            else if ("init-param".equals(n)) {
+                param(reader, component.initParams);
+            }
+            else if ("async-supported".equals(n)) {
+                component.asyncSupported = Boolean.valueOf(text(reader));
+            }
+            else if ("load-on-startup".equals(n)) {
+                // An empty element means loading at startup in any order.
+                component.loadOnStartup = number(reader, 0);
+            }
+            else {
+                skip(reader);
+            }
+        });
+        return component;
+    }
+
+    private static Mapping mapping(XMLStreamReader reader, String nameElement) throws XMLStreamException {
+        Mapping mapping = new Mapping();
+        children(reader, (n) -> {
+            if (nameElement.equals(n)) {
+                mapping.name = text(reader);
+            }
+            else if ("url-pattern".equals(n)) {
+                mapping.urlPatterns.add(text(reader));
+            }
+            else if ("servlet-name".equals(n)) {
+                mapping.servletNames.add(text(reader));
+            }
+            else if ("dispatcher".equals(n)) {
+                mapping.dispatchers.add(text(reader));
+            }
+            else {
+                skip(reader);
+            }
+        });
+        return mapping;
+    }
+
+    private static void param(XMLStreamReader reader, Map<String, String> params) throws XMLStreamException {
+        String[] param = new String[2];
+        children(reader, (n) -> {
+            if ("param-name".equals(n)) {
+                param[0] = text(reader);
+            }
+            else if ("param-value".equals(n)) {
+                param[1] = text(reader);
+            }
+            else {
+                skip(reader);
+            }
+        });
+        params.put(param[0], param[1]);
+    }
+
+    /**
+     * Handle the child elements of the current element. The handler must consume the complete child element.
+     * Returns with the reader positioned on the end of the current element.
+     */
+    private static void children(XMLStreamReader reader, ChildHandler handler) throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            handler.handle(reader.getLocalName());
+        }
+    }
+
+    private static String text(XMLStreamReader reader) throws XMLStreamException {
+        return reader.getElementText().trim();
+    }
+
+    /**
+     * Get the content of the current element as number.
+     *
+     * @param empty The value of an empty element, null if it must have content
+     */
+    private static Integer number(XMLStreamReader reader, Integer empty) throws XMLStreamException {
+        String name = reader.getLocalName();
+        Location location = reader.getLocation();
+        String value = text(reader);
+        if (value.isEmpty() && empty != null) {
+            return empty;
+        }
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException exc) {
+            throw new XMLStreamException("invalid number \"" + value + "\" in element " + name, location);
+        }
+    }
+
+    /**
+     * Skip the current element, including its content.
+     */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Write the descriptor in binary form.
+     *
+     * @param out The stream to write to
+     * @throws IOException In case of I/O errors
+     */
+    void write(DataOutputStream out) throws IOException {
+        writeMap(out, contextParams);
+        writeList(out, listeners);
+        writeComponents(out, servlets);
+        writeMappings(out, servletMappings);
+        writeComponents(out, filters);
+        writeMappings(out, filterMappings);
+        writeList(out, welcomeFiles);
+        out.writeInt(errorPages.size());
+        for (ErrorPage page : errorPages) {
+            out.writeInt(page.errorCode == null ? -1 : page.errorCode);
+            writeString(out, page.exceptionType);
+            writeString(out, page.location);
+        }
+        out.writeInt(sessionTimeout == null ? Integer.MIN_VALUE : sessionTimeout);
+    }
+
+    /**
+     * Read a descriptor that was written in binary form.
+     *
+     * @param in The stream to read from
+     * @return The descriptor
+     * @throws IOException In case of I/O errors
+     */
+    static WebAppDescriptor read(DataInputStream in) throws IOException {
+        WebAppDescriptor descriptor = new WebAppDescriptor();
+        readMap(in, descriptor.contextParams);
+        readList(in, descriptor.listeners);
+        readComponents(in, descriptor.servlets);
+        readMappings(in, descriptor.servletMappings);
+        readComponents(in, descriptor.filters);
+        readMappings(in, descriptor.filterMappings);
+        readList(in, descriptor.welcomeFiles);
+        for (int cnt = in.readInt(); cnt > 0; cnt--) {
+            ErrorPage page = new ErrorPage();
+            int code = in.readInt();
+            page.errorCode = code < 0 ? null : code;
+            page.exceptionType = readString(in);
+            page.location = readString(in);
+            descriptor.errorPages.add(page);
+        }
+        int timeout = in.readInt();
+        descriptor.sessionTimeout = timeout == Integer.MIN_VALUE ? null : timeout;
+        return descriptor;
+    }
+
+    private static void writeComponents(DataOutputStream out, List<Component> components) throws IOException {
+        out.writeInt(components.size());
+        for (Component component : components) {
+            writeString(out, component.name);
+            writeString(out, component.className);
+            writeMap(out, component.initParams);
+            out.writeByte(component.asyncSupported == null ? -1 : component.asyncSupported ? 1 : 0);
+            out.writeInt(component.loadOnStartup == null ? Integer.MIN_VALUE : component.loadOnStartup);
+        }
+    }
+
+    private static void readComponents(DataInputStream in, List<Component> components) throws IOException {
+        for (int cnt = in.readInt(); cnt > 0; cnt--) {
+            Component component = new Component();
+            component.name = readString(in);
+            component.className = readString(in);
+            readMap(in, component.initParams);
+            byte async = in.readByte();
+            component.asyncSupported = async < 0 ? null : async == 1;
+            int loadOnStartup = in.readInt();
+            component.loadOnStartup = loadOnStartup == Integer.MIN_VALUE ? null : loadOnStartup;
+            components.add(component);
+        }
+    }
+
+    private static void writeMappings(DataOutputStream out, List<Mapping> mappings) throws IOException {
+        out.writeInt(mappings.size());
+        for (Mapping mapping : mappings) {
+            writeString(out, mapping.name);
+            writeList(out, mapping.urlPatterns);
+            writeList(out, mapping.servletNames);
+            writeList(out, mapping.dispatchers);
+        }
+    }
+
+    private static void readMappings(DataInputStream in, List<Mapping> mappings) throws IOException {
+        for (int cnt = in.readInt(); cnt > 0; cnt--) {
+            Mapping mapping = new Mapping();
+            mapping.name = readString(in);
+            readList(in, mapping.urlPatterns);
+            readList(in, mapping.servletNames);
+            readList(in, mapping.dispatchers);
+            mappings.add(mapping);
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static void readMap(DataInputStream in, Map<String, String> map) throws IOException {
+        for (int cnt = in.readInt(); cnt > 0; cnt--) {
+            map.put(readString(in), readString(in));
+        }
+    }
+
+    static void writeList(DataOutputStream out, Collection<String> list) throws IOException {
+        out.writeInt(list.size());
+        for (String value : list) {
+            writeString(out, value);
+        }
+    }
+
+    static void readList(DataInputStream in, Collection<String> list) throws IOException {
+        for (int cnt = in.readInt(); cnt > 0; cnt--) {
+            list.add(readString(in));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -15,7 +15,16 @@
  */
 package osgi.extender.web.service;
 
-import javax.servlet.ServletContext;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Servlet;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -36,14 +45,46 @@ import osgi.extender.web.servlet.DispatchingServlet;
  * OSGi services or as a result of a WAB definition header in a bundle (which is picked up elsewhere in this bundle).
  * The listener registers a dispatching servlet at a standard http service to delegate all handling of a web context via
  * the components and classes in this bundle. The servlet is the main entry point for all requests made to the web context.
+ * When the framework property "osgi.extender.web.lazy" is true, a placeholder servlet is registered instead, which
+ * creates the context on the first request. With the framework property "osgi.extender.web.lazy.delay" set, the
+ * contexts are also created in the background that many seconds after their registration.
+ * Contexts are deployed in parallel on a pool with the number of threads set by the framework property
+ * "osgi.extender.web.deploy.threads" (default the number of processors): the descriptors are parsed and the context
+ * is created in parallel, after which the registration at the http service is serialized. Only a placeholder servlet
+ * is registered, so the initialization of the context, which may take long, is done outside the serialized part.
+ * The time of the stages is logged. Removing a context cancels its deployment if it hasn't started yet, and
+ * otherwise waits for it.
  */
 @Component
 public class WebContextListener {
     private HttpService httpService;
     private ServiceTracker<WebContextDefinition, Context> tracker;
+    private boolean lazy;
+    private ScheduledExecutorService activator;
+    private long delay;
+    private ExecutorService deployer;
+    private final Object registration = new Object();
 
     @Activate
     void activate(BundleContext context) {
+        lazy = Boolean.parseBoolean(context.getProperty("osgi.extender.web.lazy"));
+        String delayProperty = context.getProperty("osgi.extender.web.lazy.delay");
+        if (lazy && delayProperty != null) {
+            delay = Long.parseLong(delayProperty);
+            activator = Executors.newSingleThreadScheduledExecutor((r) -> {
+                Thread thread = new Thread(r, "web context activator");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        String threads = context.getProperty("osgi.extender.web.deploy.threads");
+        int count = threads == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads);
+        AtomicInteger sequence = new AtomicInteger();
+        deployer = Executors.newFixedThreadPool(Math.max(count, 1), (r) -> {
+            Thread thread = new Thread(r, "web context deployer #" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
         // Track the web context definitions.
         tracker = new ServiceTracker<>(context, WebContextDefinition.class,
                 new ServiceTrackerCustomizer<WebContextDefinition, Context>() {
@@ -72,7 +113,11 @@ public class WebContextListener {
 
     @Deactivate
     void destroy() {
+        if (activator != null) {
+            activator.shutdownNow();
+        }
         tracker.close();
+        deployer.shutdown();
     }
 
     @Reference
@@ -80,45 +125,101 @@ public class WebContextListener {
         httpService = service;
     }
 
-    private static String path(ServletContext c) {
-        return c.getContextPath();
-    }
-
     /**
-     * Create a context/servlet for a specific web context definition.
+     * Create a context/servlet for a specific web context definition. The deployment is started in the background.
      *
      * @param bundle The bundle that originally registered the context definition
      * @param def The definition itself
-     * @return A context or null if a severe error occurred
+     * @return The context
      */
     Context create(Bundle bundle, WebContextDefinition def) {
+        Context context = new Context(def.getContextPath());
+        context.deployment = deployer.submit(() -> deploy(context, bundle, def));
+        return context;
+    }
+
+    /**
+     * Deploy a context: create the servlet and register it, unless the context was removed in the meantime.
+     */
+    private void deploy(Context context, Bundle bundle, WebContextDefinition def) {
+        if (!context.started.compareAndSet(false, true)) {
+            // Removed before it started.
+            return;
+        }
         try {
-            DispatchingServlet servlet = ServletContextParser.create(bundle, def);
-            httpService.registerServlet(path(servlet.getServletContext()), servlet, null, null);
-            return new Context(servlet);
+            long start = System.nanoTime();
+            PlaceholderServlet servlet;
+            if (lazy) {
+                servlet = new PlaceholderServlet(() -> ServletContextParser.create(bundle, def));
+            }
+            else {
+                DispatchingServlet created = ServletContextParser.create(bundle, def);
+                servlet = new PlaceholderServlet(() -> created);
+            }
+            long created = System.nanoTime();
+            // Removal waits for this deployment, so it unregisters the servlet if removed meanwhile.
+            synchronized (registration) {
+                if (context.removed) {
+                    return;
+                }
+                httpService.registerServlet(context.path, servlet, null, null);
+                context.servlet = servlet;
+            }
+            long registered = System.nanoTime();
+            if (activator != null) {
+                activator.schedule(servlet::activate, delay, TimeUnit.SECONDS);
+            }
+            else if (!lazy) {
+                servlet.activate();
+            }
+            long initialized = System.nanoTime();
+            servlet.getServletConfig().getServletContext().log("context \"" + context.path + "\" deployed, create: " +
+                    (created - start) / 1000000 + " ms, register: " + (registered - created) / 1000000 +
+                    " ms, init: " + (initialized - registered) / 1000000 + " ms");
         } catch (Throwable exc) {
             exc.printStackTrace();
-            return null;
+        } finally {
+            context.deployed.countDown();
         }
     }
 
     /**
-     * Destroy a context. Normally done when a bundle stops or a service is unregistered.
+     * Destroy a context. Normally done when a bundle stops or a service is unregistered. A deployment that is
+     * still waiting is cancelled, a running one is completed first.
      *
      * @param context The context to destroy
      */
     void destroy(Context context) {
+        context.removed = true;
+        if (context.started.compareAndSet(false, true)) {
+            context.deployment.cancel(false);
+            return;
+        }
+        try {
+            context.deployed.await();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (context.servlet == null) {
+            return;
+        }
         try {
-            httpService.unregister(path(context.servlet.getServletContext()));
+            httpService.unregister(context.path);
         } catch (Exception exc) {
             exc.printStackTrace();
         }
     }
 
     static class Context {
-        final DispatchingServlet servlet;
-        Context(DispatchingServlet s) {
-            servlet = s;
+        final String path;
+        final AtomicBoolean started = new AtomicBoolean();
+        final CountDownLatch deployed = new CountDownLatch(1);
+        volatile Future<?> deployment;
+        volatile Servlet servlet;
+        volatile boolean removed;
+        Context(String p) {
+            path = p;
         }
     }
 }
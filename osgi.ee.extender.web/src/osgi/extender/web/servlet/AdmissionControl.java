@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for the requests of a context: limits the number of requests handled concurrently, so a slow
+ * context cannot take all threads of the container. The limit adapts to the observed latency (AIMD): the baseline
+ * is the lowest latency seen recently. When a request takes more than twice the baseline, the limit is decreased by
+ * 10%, at most once per baseline period. When the limit is reached and requests are fast, it is increased by one
+ * per limit's worth of completed requests. A request that finds the limit reached waits for a short while and is
+ * rejected after that. An asynchronous request is released when it returns the thread of the container, so a long
+ * running request, like long polling, neither holds a slot nor counts as slow.
+ */
+class AdmissionControl {
+    private static final int WINDOW = 100;
+    private int minLimit;
+    private int maxLimit;
+    private long queueTimeout;
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition available = lock.newCondition();
+    private volatile int limit;
+    private volatile int inFlight;
+    private int increase;
+    private long baseline = Long.MAX_VALUE;
+    private long windowMin = Long.MAX_VALUE;
+    private int samples;
+    private long lastDecrease;
+    private LongAdder rejected;
+    private LongAdder queued;
+
+    /**
+     * Create the admission control.
+     *
+     * @param minLimit The minimum concurrency limit
+     * @param maxLimit The maximum concurrency limit, also the initial limit
+     * @param queueTimeout The maximum time in milliseconds a request waits for admission
+     * @param statistics The statistics to publish the values with
+     */
+    AdmissionControl(int minLimit, int maxLimit, long queueTimeout, Statistics statistics) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.queueTimeout = queueTimeout;
+        limit = maxLimit;
+        // The origin of System.nanoTime is arbitrary, possibly negative.
+        lastDecrease = System.nanoTime();
+        rejected = statistics.counter("admission.rejected");
+        queued = statistics.counter("admission.queued");
+        statistics.register("admission.limit", () -> limit);
+        statistics.register("admission.inflight", () -> inFlight);
+    }
+
+    /**
+     * Admit a request, waiting for a while if the limit is reached.
+     *
+     * @return true if the request is admitted, false if it must be rejected
+     */
+    boolean acquire() {
+        lock.lock();
+        try {
+            if (inFlight < limit) {
+                inFlight++;
+                return true;
+            }
+            queued.increment();
+            long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+            while (inFlight >= limit && remaining > 0) {
+                remaining = available.awaitNanos(remaining);
+            }
+            if (inFlight < limit) {
+                inFlight++;
+                return true;
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Release an admitted request and adapt the limit.
+     *
+     * @param start The start time of the request as given by System.nanoTime
+     */
+    void release(long start) {
+        long now = System.nanoTime();
+        long latency = now - start;
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= limit;
+            inFlight--;
+            windowMin = Math.min(windowMin, latency);
+            if (++samples == WINDOW || baseline == Long.MAX_VALUE) {
+                // Let the baseline rise slowly, to follow a context that gets slower for good.
+                baseline = Math.min(windowMin, baseline == Long.MAX_VALUE ? windowMin : baseline + baseline / 10);
+                windowMin = Long.MAX_VALUE;
+                samples = 0;
+            }
+            if (latency > 2 * baseline) {
+                if (now - lastDecrease > baseline) {
+                    limit = Math.max(minLimit, limit - Math.max(1, limit / 10));
+                    lastDecrease = now;
+                    increase = 0;
+                }
+            }
+            else if (saturated && ++increase >= limit) {
+                limit = Math.min(maxLimit, limit + 1);
+                increase = 0;
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
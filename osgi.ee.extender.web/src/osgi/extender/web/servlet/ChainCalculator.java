@@ -15,11 +15,19 @@
  */
 package osgi.extender.web.servlet;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.Servlet;
@@ -28,100 +36,178 @@ import osgi.extender.web.servlet.support.DynamicFRegistration;
 import osgi.extender.web.servlet.support.DynamicSRegistration;
 
 /**
- * Calculator and cache for the various chains of execution of servlet requests.
+ * Calculator and cache for the various chains of execution of servlet requests. The calculator is constructed from the
+ * servlet and filter definitions of a context and builds an index on their mappings. It must therefore be
+ * constructed again when the definitions change, which automatically invalidates the cached chains.
+ * Since filters are mapped per dispatcher type, the filter index and the cache are kept per dispatcher type.
  */
 class ChainCalculator {
+    private MappingIndex<DynamicSRegistration> servletIndex = new MappingIndex<>();
+    private Map<DispatcherType, FilterIndex> filterIndexes = new EnumMap<>(DispatcherType.class);
+    private Map<DispatcherType, Map<String, Chain>> caches = new EnumMap<>(DispatcherType.class);
+    private List<DynamicFRegistration> filters;
+    private int cacheSize;
+    private LongAdder hits;
+    private LongAdder misses;
+    private Latencies latencies;
+    private Consumer<DynamicSRegistration> initializer;
+
+    /**
+     * Calculated chain for a path: the filter chain to execute, the name of the servlet at the end of the chain,
+     * the servlet path of the request and whether all filters and the servlet support asynchronous mode.
+     */
+    static class Chain {
+        final FilterChain chain;
+        final String servletName;
+        final String servletPath;
+        final boolean asyncSupported;
+
+        Chain(FilterChain c, String n, String p, boolean a) {
+            chain = c;
+            servletName = n;
+            servletPath = p;
+            asyncSupported = a;
+        }
+    }
+
+    /**
+     * Index on the filter mappings for one dispatcher type. Filters are identified by their position in the
+     * list of filters, which follows the iteration order of the registrations.
+     */
+    private static class FilterIndex {
+        private MappingIndex<Integer> patterns = new MappingIndex<>();
+        private Map<String, BitSet> byServlet = new HashMap<>();
+    }
+
     /**
-     * Determine the filter chain for a specific path given the definition of servlets and filters. The routine
-     * first determines the servlet for which the path applies and if found, determines the filters that need to
-     * be used. The complete chain is returned as a standard FilterChain.
+     * Construct the calculator from the current definition of servlets and filters.
      *
      * @param filters The filters that are defined
      * @param servlets The servlets that are defined
-     * @param path The path, meaning the URI without the context, that needs to be matched
-     * @param servletPath The servlet path as determined, returned
-     * @return The filter chain to execute on the incoming request/response
+     * @param cacheSize The maximum number of paths for which the chain is cached, per dispatcher type
+     * @param hits Counter for cache hits
+     * @param misses Counter for cache misses
+     * @param latencies The latency histograms the chains record in
+     * @param initializer Initializes a servlet that isn't initialized yet on first use
      */
-    static FilterChain getChain(Map<String, DynamicFRegistration> filters, Map<String, DynamicSRegistration> servlets,
-            String path, StringBuffer servletPath) {
-        // Determine the best matching servlet.
-        int bestMatchLength = -1;
-        String bestServlet = null;
-        for (Map.Entry<String, DynamicSRegistration> entry : servlets.entrySet()) {
-            DynamicSRegistration reg = entry.getValue();
-            for (String mapping : reg.getMappings()) {
-                int match = matchLength(path, mapping);
-                if (match > bestMatchLength) {
-                    bestMatchLength = match;
-                    bestServlet = entry.getKey();
-                }
+    ChainCalculator(Map<String, DynamicFRegistration> filters, Map<String, DynamicSRegistration> servlets,
+            int cacheSize, LongAdder hits, LongAdder misses, Latencies latencies,
+            Consumer<DynamicSRegistration> initializer) {
+        this.cacheSize = cacheSize;
+        this.initializer = initializer;
+        this.hits = hits;
+        this.misses = misses;
+        this.latencies = latencies;
+        servlets.values().forEach((s) -> s.getMappings().forEach((m) -> servletIndex.add(m, s)));
+        this.filters = new ArrayList<>(filters.values());
+        for (DispatcherType type : DispatcherType.values()) {
+            FilterIndex filterIndex = new FilterIndex();
+            for (int cnt = 0; cnt < this.filters.size(); cnt++) {
+                final int index = cnt;
+                DynamicFRegistration reg = this.filters.get(cnt);
+                reg.getUrlPatternMappings(type).forEach((m) -> filterIndex.patterns.add(m, index));
+                reg.getServletNameMappings(type).forEach((n) ->
+                    filterIndex.byServlet.computeIfAbsent(n, (k) -> new BitSet()).set(index));
             }
+            filterIndexes.put(type, filterIndex);
+            caches.put(type, new ConcurrentHashMap<>());
         }
-        if (bestServlet == null) {
-            return null;
-        }
-        // Determine the filters.
-        final String bestServletName = bestServlet;
-        List<DynamicFRegistration> filtersToUse =
-                filters.values().stream().filter((f) -> {
-                    if (f.getServletNameMappings().contains(bestServletName)) {
-                        return true;
-                    }
-                    for (String pm : f.getUrlPatternMappings()) {
-                        if (matchLength(path, pm) >= 0) {
-                            return true;
-                        }
-                    }
-                    return false;
-                }).collect(Collectors.toList());
-        // Now we got zero or more filters and one servlet. Create a chain from it.
-        Servlet servlet = servlets.get(bestServlet).getObject();
-        FilterChain chain = (request, response) -> servlet.service(request, response);
-        // Now wrap the chain with the filters, in reverse order.
-        Collections.reverse(filtersToUse);
-        for (DynamicFRegistration fr : filtersToUse) {
-            final FilterChain original = chain;
-            final Filter f = fr.getObject();
-            chain = (r, rr) -> f.doFilter(r, rr, original);
+    }
+
+    /**
+     * Get the chain for a specific path, either from the cache or by calculating it.
+     *
+     * @param type The dispatcher type for which the chain is executed
+     * @param path The path, meaning the URI without the context, that needs to be matched
+     * @return The chain for the path or null if no servlet matches
+     */
+    Chain getChain(DispatcherType type, String path) {
+        Map<String, Chain> cache = caches.get(type);
+        Chain chain = cache.get(path);
+        if (chain != null) {
+            hits.increment();
+            return chain;
         }
-        // Return the servlet path.
-        int servletPathLength = bestMatchLength;
-        if (bestMatchLength > 0) {
-            servletPathLength--;
+        misses.increment();
+        chain = calculate(type, path);
+        if (chain != null && cacheSize > 0) {
+            // Make room by evicting an arbitrary entry: keeps the cache bounded without locking.
+            Iterator<String> it = cache.keySet().iterator();
+            while (cache.size() >= cacheSize && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+            cache.put(path, chain);
         }
-        servletPath.append(path.substring(0, servletPathLength));
         return chain;
     }
 
     /**
-     * Check the match length of a specific mapping. Routine calculates the match length on the various types of path/url mappings
-     * that are possible for servlets (and filters). It determines the type of mapping used and determines the match length
-     * from it: for path mapping the length of the path, for extension mapping the length is set to 0.
-     *
-     * @param path The path to check
-     * @param mapping The mapping to check against
-     * @return The length of the match, -1 on no match at all
+     * Wrap a chain element to record its latency.
      */
-    private static int matchLength(String path, String mapping) {
-        int length = -1;
-        if (mapping.startsWith("*")) {
-            // Extension matching.
-            if (path.endsWith(mapping.substring(1))) {
-                length = 0;
+    private static FilterChain measured(LatencyHistogram histogram, FilterChain element) {
+        return (request, response) -> {
+            long start = System.nanoTime();
+            boolean error = true;
+            try {
+                element.doFilter(request, response);
+                error = false;
+            } finally {
+                histogram.record(System.nanoTime() - start, error);
             }
+        };
+    }
+
+    /**
+     * Determine the filter chain for a specific path. The routine first determines the servlet for which the path
+     * applies and if found, determines the filters that need to be used. The complete chain is returned as a
+     * standard FilterChain.
+     *
+     * @param type The dispatcher type for which the chain is executed
+     * @param path The path, meaning the URI without the context, that needs to be matched
+     * @return The chain to execute on the incoming request/response
+     */
+    private Chain calculate(DispatcherType type, String path) {
+        // Determine the best matching servlet.
+        MappingIndex.Match<DynamicSRegistration> best = servletIndex.best(path);
+        if (best == null) {
+            return null;
         }
-        else if (mapping.endsWith("*")) {
-            // Path matching.
-            if (path.startsWith(mapping.substring(0, mapping.length() - 1))) {
-                length = mapping.length() - 1;
-            }
+        // Determine the filters.
+        FilterIndex filterIndex = filterIndexes.get(type);
+        BitSet matching = new BitSet();
+        BitSet byName = filterIndex.byServlet.get(best.value.getName());
+        if (byName != null) {
+            matching.or(byName);
+        }
+        filterIndex.patterns.all(path, matching::set);
+        List<DynamicFRegistration> filtersToUse = new ArrayList<>(matching.cardinality());
+        for (int index = matching.nextSetBit(0); index >= 0; index = matching.nextSetBit(index + 1)) {
+            filtersToUse.add(filters.get(index));
         }
-        else {
-            // Exact matching.
-            if (path.equals(mapping)) {
-                length = mapping.length();
+        // Now we got zero or more filters and one servlet. Create a chain from it, recording the latencies.
+        DynamicSRegistration reg = best.value;
+        Servlet servlet = reg.getObject();
+        FilterChain chain = measured(latencies.servlet(reg.getName()), (request, response) -> {
+            if (!reg.isInitialized()) {
+                initializer.accept(reg);
             }
+            servlet.service(request, response);
+        });
+        // Now wrap the chain with the filters, in reverse order.
+        Collections.reverse(filtersToUse);
+        for (DynamicFRegistration fr : filtersToUse) {
+            final FilterChain original = chain;
+            final Filter f = fr.getObject();
+            chain = measured(latencies.filter(fr.getName()), (r, rr) -> f.doFilter(r, rr, original));
+        }
+        // Determine the servlet path.
+        int servletPathLength = best.length;
+        if (servletPathLength > 0) {
+            servletPathLength--;
         }
-        return length;
+        boolean async = best.value.isAsyncSupported() &&
+                filtersToUse.stream().allMatch((f) -> f.isAsyncSupported());
+        return new Chain(chain, best.value.getName(), path.substring(0, servletPathLength), async);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Output stream that compresses a response with gzip if it turns out to be worth it. The output is buffered until
+ * the minimum size for compression is reached, the stream is flushed or the response is finished. At that moment,
+ * the content type and status are known and the choice is made. A content length set before is only passed on if
+ * the response is not compressed. Non-blocking output is never compressed.
+ */
+class CompressingOutputStream extends ServletOutputStream {
+    private HttpServletResponse response;
+    private Opener opener;
+    private Compression compression;
+    private ServletOutputStream delegate;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private OutputStream out;
+    private boolean compressing;
+    private long contentLength = -1;
+
+    /**
+     * Compressed stream of which the compressor can be released without closing the underlying stream.
+     */
+    private static class GzipStream extends GZIPOutputStream {
+        GzipStream(OutputStream out) throws IOException {
+            super(out, 8192, true);
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+
+    /**
+     * Opening of the actual stream.
+     */
+    interface Opener {
+        ServletOutputStream open() throws IOException;
+    }
+
+    /**
+     * Create the stream.
+     *
+     * @param response The response to set the headers on
+     * @param compression The compression settings
+     * @param opener Opens the actual stream to write to
+     */
+    CompressingOutputStream(HttpServletResponse response, Compression compression, Opener opener) {
+        this.response = response;
+        this.compression = compression;
+        this.opener = opener;
+    }
+
+    private ServletOutputStream delegate() throws IOException {
+        if (delegate == null) {
+            delegate = opener.open();
+        }
+        return delegate;
+    }
+
+    /**
+     * Set the content length of the uncompressed response.
+     *
+     * @param length The length
+     */
+    void setContentLength(long length) {
+        if (out == null) {
+            contentLength = length;
+        }
+        else if (!compressing) {
+            response.setContentLengthLong(length);
+        }
+    }
+
+    /**
+     * Decide whether to compress.
+     *
+     * @param large Whether the response is large enough
+     */
+    private void decide(boolean large) throws IOException {
+        String type = response.getContentType();
+        int status = response.getStatus();
+        boolean compressible = compression.isCompressible(type) && response.getHeader("Content-Encoding") == null &&
+                status != HttpServletResponse.SC_PARTIAL_CONTENT && status != HttpServletResponse.SC_NO_CONTENT &&
+                status != HttpServletResponse.SC_NOT_MODIFIED;
+        if (compressible && !response.getHeaders("Vary").contains("Accept-Encoding")) {
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        compressing = compressible && large;
+        if (compressing) {
+            response.setHeader("Content-Encoding", "gzip");
+            out = new GzipStream(delegate());
+        }
+        else {
+            if (contentLength >= 0) {
+                response.setContentLengthLong(contentLength);
+            }
+            out = delegate();
+        }
+        buffer.writeTo(out);
+        buffer = null;
+    }
+
+    boolean isCompressing() {
+        return compressing;
+    }
+
+    /**
+     * Reset the output that is not written yet. Must only be called after a reset of the buffer of the response,
+     * before it is committed. Once compression has started, it restarts with a new compressed stream, of which the
+     * header is written to the emptied buffer.
+     */
+    void reset() {
+        contentLength = -1;
+        if (out == null) {
+            buffer.reset();
+        }
+        else if (compressing) {
+            ((GzipStream) out).end();
+            try {
+                out = new GzipStream(delegate());
+            } catch (IOException exc) {
+                throw new IllegalStateException(exc);
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (out != null) {
+            out.write(b, off, len);
+            return;
+        }
+        buffer.write(b, off, len);
+        if (buffer.size() >= compression.getMinSize()) {
+            decide(true);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out == null) {
+            decide(contentLength < 0 || contentLength >= compression.getMinSize());
+        }
+        out.flush();
+    }
+
+    /**
+     * Finish the response: write what is buffered and complete the compressed data, without closing the stream.
+     *
+     * @throws IOException In case of I/O errors
+     */
+    void finish() throws IOException {
+        if (out == null) {
+            if (buffer.size() == 0 && contentLength < 0) {
+                // Nothing written at all.
+                return;
+            }
+            decide(buffer.size() >= compression.getMinSize());
+        }
+        if (compressing) {
+            GzipStream gzip = (GzipStream) out;
+            try {
+                gzip.finish();
+            } finally {
+                // The native memory of the compressor is released right away instead of on finalization.
+                gzip.end();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        delegate().close();
+    }
+
+    @Override
+    public boolean isReady() {
+        try {
+            return delegate().isReady();
+        } catch (IOException exc) {
+            return false;
+        }
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {
+        try {
+            if (out == null) {
+                decide(false);
+            }
+            delegate().setWriteListener(listener);
+        } catch (IOException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Settings for the compression of responses of a context. Compression is enabled with the context parameter
+ * "osgi.extender.web.compression" set to true. Only responses of at least "osgi.extender.web.compression.minsize"
+ * bytes (default 1024) are compressed, with a content type that starts with one of the comma separated values of
+ * "osgi.extender.web.compression.types" (default: text, JavaScript, JSON, XML and SVG).
+ */
+class Compression {
+    private static final String TYPES = "text/,application/javascript,application/json,application/xml,image/svg+xml";
+    private int minSize;
+    private String[] types;
+
+    private Compression(int minSize, String[] types) {
+        this.minSize = minSize;
+        this.types = types;
+    }
+
+    /**
+     * Get the compression settings of a context.
+     *
+     * @param context The context
+     * @return The settings, null if compression is not enabled
+     */
+    static Compression from(OurServletContext context) {
+        if (!Boolean.parseBoolean(context.getInitParameter("osgi.extender.web.compression"))) {
+            return null;
+        }
+        String size = context.getInitParameter("osgi.extender.web.compression.minsize");
+        String types = context.getInitParameter("osgi.extender.web.compression.types");
+        return new Compression(size == null ? 1024 : Integer.parseInt(size),
+                (types == null ? TYPES : types).trim().split("\\s*,\\s*"));
+    }
+
+    int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Check whether content of a type is worth compressing.
+     *
+     * @param contentType The content type, may contain parameters
+     * @return true if it is compressible
+     */
+    boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ENGLISH);
+        for (String t : types) {
+            if (type.startsWith(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a client accepts a content coding, according to the Accept-Encoding header.
+     *
+     * @param request The request
+     * @param coding The coding, like "gzip"
+     * @return true if the coding is accepted
+     */
+    static boolean accepts(HttpServletRequest request, String coding) {
+        String header = request.getHeader("Accept-Encoding");
+        if (header == null) {
+            return false;
+        }
+        boolean accepted = false;
+        for (String part : header.split(",")) {
+            String[] elements = part.trim().split("\\s*;\\s*");
+            double q = 1;
+            for (int cnt = 1; cnt < elements.length; cnt++) {
+                if (elements[cnt].startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(elements[cnt].substring(2));
+                    } catch (NumberFormatException exc) {
+                        q = 0;
+                    }
+                }
+            }
+            if (elements[0].equalsIgnoreCase(coding)) {
+                // An explicit value wins over the wildcard.
+                return q > 0;
+            }
+            if (elements[0].equals("*")) {
+                accepted = q > 0;
+            }
+        }
+        return accepted;
+    }
+}
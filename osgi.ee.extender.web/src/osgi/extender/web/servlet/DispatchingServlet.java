@@ -16,16 +16,19 @@
 package osgi.extender.web.servlet;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
+import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Map;
-import java.util.Optional;
 import java.util.ServiceLoader;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.servlet.FilterChain;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContainerInitializer;
@@ -42,6 +45,9 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.Version;
 
+import osgi.extender.web.WebContextLatencies;
+import osgi.extender.web.WebContextStatistics;
+
 /**
  * Servlet that handles the dispatching of a specific context to filters and servlets. It takes care of initialization of
  * the context and dispatching incoming requests to the correct chain.
@@ -53,16 +59,23 @@ public class DispatchingServlet implements Servlet {
     private ServletConfig baseConfig;
     private OurServletContext servletContext;
     private ServiceRegistration<ServletContext> registration;
+    private ServiceRegistration<WebContextStatistics> statisticsRegistration;
+    private ServiceRegistration<WebContextLatencies> latenciesRegistration;
     private Collection<String> welcomePages;
     private Map<Integer, String> errorPages;
-    private Map<Class<?>, String> exceptionPages;
+    private ExceptionPages exceptionPages;
+    private StaticResources resources;
+    private Compression compression;
+    private ExecutorService virtualThreads;
+    private AdmissionControl admission;
+    private String retryAfter;
 
     public DispatchingServlet(OurServletContext ctx, Collection<String> welcomes,
             Map<Integer, String> errorPages, Map<Class<?>, String> exceptionPages) {
         servletContext = ctx;
         welcomePages = welcomes;
         this.errorPages = errorPages;
-        this.exceptionPages = exceptionPages;
+        this.exceptionPages = new ExceptionPages(exceptionPages);
     }
 
     private void doWithClassLoader(Runner actions) throws ServletException {
@@ -86,17 +99,36 @@ public class DispatchingServlet implements Servlet {
             callInitializers(servletContext, servletContext.getClassLoader());
             servletContext.init(config.getServletContext());
         });
+        compression = Compression.from(servletContext);
+        resources = new StaticResources(servletContext, compression);
+        admission = admissionControl(servletContext);
+        String retry = servletContext.getInitParameter("osgi.extender.web.admission.retryafter");
+        retryAfter = retry == null ? "1" : retry;
+        if (Boolean.parseBoolean(servletContext.getInitParameter("osgi.extender.web.dispatch.virtualthreads"))) {
+            virtualThreads = virtualThreadExecutor();
+            if (virtualThreads == null) {
+                servletContext.log("virtual threads are not available, requests of context \"" +
+                        servletContext.getContextPath() + "\" are handled on container threads");
+            }
+        }
         registration = registerService(servletContext);
+        statisticsRegistration = registerStatistics(servletContext);
+        latenciesRegistration = registerLatencies(servletContext);
         servletContext.log("context \"" + servletContext.getContextPath() + "\" initialized");
     }
 
     @Override
     public void destroy() {
         try {
+            latenciesRegistration.unregister();
+            statisticsRegistration.unregister();
             registration.unregister();
         } catch (Exception exc) {
             // May fail, but silently ignore.
         }
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
         // Send the context destroyed event to all applicable listeners.
         try {
             doWithClassLoader(() -> servletContext.destroy());
@@ -136,65 +168,326 @@ public class DispatchingServlet implements Servlet {
             response.sendRedirect(path + "/");
             return;
         }
-        // Is it the start and do we have welcome pages? Redirect to first page.
+        // Is it the start and do we have welcome pages? Serve or redirect to first page.
         if (subpath.equals("/") && welcomePages.size() > 0) {
             String welcomeFile = welcomePages.iterator().next();
-            URL welcomePath = servletContext.getResource(welcomeFile);
-            if (welcomePath == null) {
+            if (!resources.serve(request, response, welcomeFile)) {
                 // No resource. Just redirect to let it be handled by a servlet.
                 response.sendRedirect(servletContext.getContextPath() + welcomeFile);
             }
-            else {
-                // Copy the file to the output.
-                try (InputStream in = welcomePath.openStream();
-                     OutputStream out = response.getOutputStream()){
-                    byte[] data = new byte[200];
-                    int size;
-                    while ((size = in.read(data)) > 0) {
-                        out.write(data, 0, size);
-                    }
-                }
-            }
             return;
         }
         // Use automatic handling of error pages from now on.
-        OurServletResponse res = new OurServletResponse(response, servletContext.getContextPath(), errorPages);
-        StringBuffer servletPath = new StringBuffer();
-        FilterChain chain = servletContext.getChain(subpath, servletPath);
+        OurServletResponse res = new OurServletResponse(response, errorPages);
+        if (compression != null && Compression.accepts(request, "gzip")) {
+            res.setCompression(compression);
+        }
+        ChainCalculator.Chain chain = servletContext.getChain(DispatcherType.REQUEST, subpath);
         if (chain == null) {
-            servletContext.log("no servlet mapping found for \"" + subpath +
-                    "\", context: " + servletContext.getContextPath());
-            res.sendError(HttpServletResponse.SC_NOT_FOUND);
+            // Not for a servlet, so may be a static resource.
+            if (!resources.serve(request, res, subpath)) {
+                servletContext.log("no servlet mapping found for \"" + subpath +
+                        "\", context: " + servletContext.getContextPath());
+                res.sendError(HttpServletResponse.SC_NOT_FOUND);
+            }
+            dispatchError(request, res, null, null);
+            res.finish();
             return;
         }
-        String pathInfo = subpath.substring(servletPath.length());
-        OurServletRequest req = new OurServletRequest(request, servletContext, servletPath.toString(), pathInfo);
-        // Put down the chain.
+        if (virtualThreads != null) {
+            dispatchVirtual(request, response, res, chain, subpath);
+            return;
+        }
+        handle(request, response, res, chain, subpath);
+    }
+
+    /**
+     * Handle a request by a chain of the context.
+     *
+     * @param request The request
+     * @param response The response
+     * @param res The response wrapper that handles the error pages
+     * @param chain The chain for the request
+     * @param subpath The path of the request within the context
+     * @throws ServletException In case of errors
+     * @throws IOException In case of I/O errors
+     */
+    private void handle(HttpServletRequest request, HttpServletResponse response, OurServletResponse res,
+            ChainCalculator.Chain chain, String subpath) throws ServletException, IOException {
+        if (admission != null && !admission.acquire()) {
+            response.setHeader("Retry-After", retryAfter);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        long start = System.nanoTime();
+        String pathInfo = subpath.substring(chain.servletPath.length());
+        OurServletRequest req = new OurServletRequest(request, response, servletContext, chain.servletPath, pathInfo);
         ServletRequestEvent event = new ServletRequestEvent(servletContext, req);
+        Runnable ended = () -> requestEnded(request, event);
+        if (chain.asyncSupported) {
+            // The request ends when the asynchronous mode completes. Errors recorded in the meantime,
+            // for example during non-blocking I/O, get their error page then.
+            req.enableAsync(this::dispatchAsync, () -> {
+                dispatchError(req, res, chain.servletName, null);
+                res.finish();
+            }, ended);
+        }
+        res.setCallbacks(req.getCallbacks());
+        // Put down the chain.
         try {
             servletContext.call(ServletRequestListener.class, (l) -> l.requestInitialized(event));
-            doWithClassLoader(() -> chain.doFilter(req, res));
-        } catch (ServletException exc) {
-            servletContext.log("exception while handling " + subpath, exc);
-            Throwable root = exc;
-            while (root.getCause() != null && root.getCause() != root) {
-                root = root.getCause();
+            doWithClassLoader(() -> chain.chain.doFilter(req, res));
+            if (req.getOurAsyncContext() == null) {
+                dispatchError(req, res, chain.servletName, null);
+                res.finish();
             }
-            Class<?> throwedClass = root.getClass();
-            Optional<String> errorPage =
-                    exceptionPages.entrySet().stream().
-                    filter((e) -> e.getKey().isAssignableFrom(throwedClass)).
-                    map((e) -> e.getValue()).findFirst();
-            if (!errorPage.isPresent()) {
+        } catch (ServletException | RuntimeException exc) {
+            servletContext.log("exception while handling " + subpath, exc);
+            Throwable root = ExceptionPages.rootCause(exc);
+            String errorPage = exceptionPages.get(root.getClass());
+            if (errorPage == null || response.isCommitted()) {
                 throw exc;
             }
-            response.sendRedirect(servletContext.getContextPath() + errorPage.get());
+            res.resetBuffer();
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            OurServletResponse error = res.forErrorPage();
+            dispatchError(req, error, errorPage, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null,
+                    chain.servletName, root);
+            error.finish();
+            if (req.getOurAsyncContext() != null) {
+                // The error page is the response, also if asynchronous mode was started before the exception.
+                req.getOurAsyncContext().complete();
+            }
+        }
+        finally {
+            OurAsyncContext async = req.getOurAsyncContext();
+            if (async != null) {
+                // The request ends on completion.
+                async.returned();
+            }
+            else {
+                ended.run();
+            }
+            if (admission != null) {
+                admission.release(start);
+            }
+        }
+    }
+
+    /**
+     * Handle a request on a virtual thread. The request listeners run on the same thread as the chain, so state
+     * that is bound to the thread, like transactions or request scopes, is found by the chain. If the container
+     * supports it and the chain doesn't use asynchronous mode itself, the container thread is released by
+     * putting the container request in asynchronous mode. Otherwise the container thread waits for the result.
+     */
+    private void dispatchVirtual(HttpServletRequest request, HttpServletResponse response, OurServletResponse res,
+            ChainCalculator.Chain chain, String subpath) throws ServletException, IOException {
+        if (!chain.asyncSupported && request.isAsyncSupported()) {
+            AsyncContext async = request.startAsync(request, response);
+            // The request takes as long as it takes, like on a container thread.
+            async.setTimeout(0);
+            virtualThreads.execute(() -> {
+                try {
+                    handle(request, response, res, chain, subpath);
+                } catch (Exception exc) {
+                    servletContext.log("exception while handling " + subpath, exc);
+                    try {
+                        if (!response.isCommitted()) {
+                            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        }
+                    } catch (IOException ioe) {
+                        // Nothing more to do.
+                    }
+                } finally {
+                    async.complete();
+                }
+            });
+            return;
+        }
+        Future<?> result = virtualThreads.submit(() -> {
+            handle(request, response, res, chain, subpath);
+            return null;
+        });
+        try {
+            result.get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new ServletException(exc);
+        } catch (ExecutionException exc) {
+            Throwable cause = exc.getCause();
+            if (cause instanceof ServletException) {
+                throw (ServletException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ServletException(cause);
+        }
+    }
+
+    /**
+     * Create the admission control of a context. It is enabled by setting the maximum concurrency with the
+     * context parameter "osgi.extender.web.admission.max". The parameters "osgi.extender.web.admission.min" (default 1)
+     * and "osgi.extender.web.admission.queuetimeout" (in milliseconds, default 100) complete the settings.
+     * Rejected requests get a 503 status with the number of seconds of "osgi.extender.web.admission.retryafter"
+     * (default 1) as Retry-After header.
+     *
+     * @return The admission control, null if not enabled
+     */
+    private static AdmissionControl admissionControl(OurServletContext context) {
+        String max = context.getInitParameter("osgi.extender.web.admission.max");
+        if (max == null) {
+            return null;
+        }
+        String min = context.getInitParameter("osgi.extender.web.admission.min");
+        String timeout = context.getInitParameter("osgi.extender.web.admission.queuetimeout");
+        return new AdmissionControl(min == null ? 1 : Integer.parseInt(min), Integer.parseInt(max),
+                timeout == null ? 100 : Long.parseLong(timeout), context.getStatistics());
+    }
+
+    /**
+     * Create an executor that runs every task on a new virtual thread. The extender runs on Java 8, so the
+     * executor is looked up reflectively.
+     *
+     * @return The executor, null if the runtime has no virtual threads
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException exc) {
+            return null;
+        }
+    }
+
+    /**
+     * End a request for the context: notify the listeners and write back the changes of a stored session.
+     */
+    private void requestEnded(HttpServletRequest request, ServletRequestEvent event) {
+        servletContext.call(ServletRequestListener.class, (l) -> l.requestDestroyed(event));
+        Object session = request.getAttribute(OurSession.sessionKey(servletContext));
+        if (session instanceof OurSession) {
+            servletContext.getStoredSessions().requestEnded((OurSession) session);
+        }
+    }
+
+    /**
+     * Dispatch an asynchronous request to a path within the context, with the asynchronous dispatcher type. The
+     * request listeners are notified of the start and end of the dispatch.
+     *
+     * @param request The request that was put in asynchronous mode
+     * @param response The response
+     * @param path The path within the context, may contain a query string which is ignored
+     * @param async The asynchronous context
+     * @throws ServletException In case of errors
+     * @throws IOException In case of I/O errors
+     */
+    private void dispatchAsync(ServletRequest request, ServletResponse response, String path, OurAsyncContext async)
+            throws ServletException, IOException {
+        HttpServletRequest original = (HttpServletRequest) request;
+        HttpServletResponse resp = (HttpServletResponse) response;
+        int index = path.indexOf('?');
+        String subpath = index >= 0 ? path.substring(0, index) : path;
+        ChainCalculator.Chain chain = servletContext.getChain(DispatcherType.ASYNC, subpath);
+        if (chain == null) {
+            servletContext.log("no servlet mapping found for asynchronous dispatch to \"" + subpath +
+                    "\", context: " + servletContext.getContextPath());
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        original.setAttribute(AsyncContext.ASYNC_REQUEST_URI, original.getRequestURI());
+        original.setAttribute(AsyncContext.ASYNC_CONTEXT_PATH, original.getContextPath());
+        original.setAttribute(AsyncContext.ASYNC_SERVLET_PATH, original.getServletPath());
+        original.setAttribute(AsyncContext.ASYNC_PATH_INFO, original.getPathInfo());
+        original.setAttribute(AsyncContext.ASYNC_QUERY_STRING, original.getQueryString());
+        OurServletRequest req = new OurServletRequest(original, resp, servletContext, chain.servletPath,
+                subpath.substring(chain.servletPath.length()), DispatcherType.ASYNC);
+        if (chain.asyncSupported) {
+            req.enableAsync(this::dispatchAsync, async);
+        }
+        // The dispatch runs on a thread of its own, so the request listeners are notified around it as for the
+        // original request. The request itself ends on completion.
+        ServletRequestEvent event = new ServletRequestEvent(servletContext, req);
+        servletContext.call(ServletRequestListener.class, (l) -> l.requestInitialized(event));
+        try {
+            doWithClassLoader(() -> chain.chain.doFilter(req, response));
         }
         finally {
             servletContext.call(ServletRequestListener.class, (l) -> l.requestDestroyed(event));
         }
     }
 
+    /**
+     * Dispatch to the error page of an error recorded on the response, if any.
+     *
+     * @param request The original request
+     * @param response The response that may have recorded an error
+     * @param servletName The name of the servlet that handled the request, may be null
+     * @param exc The exception that caused the error, may be null
+     * @throws ServletException In case of errors
+     * @throws IOException In case of I/O errors
+     */
+    private void dispatchError(HttpServletRequest request, OurServletResponse response, String servletName,
+            Throwable exc) throws ServletException, IOException {
+        String page = response.getErrorPage();
+        if (page == null || response.isCommitted()) {
+            return;
+        }
+        // Drop the output buffered for compression as well.
+        response.resetBuffer();
+        OurServletResponse error = response.forErrorPage();
+        dispatchError(request, error, page, response.getErrorCode(), response.getErrorMessage(), servletName, exc);
+        error.finish();
+    }
+
+    /**
+     * Dispatch to an error page. The error page is handled internally through the chain of this context for the
+     * error dispatcher type, with the standard error attributes set on the request. The response status is kept.
+     * A response that doesn't record errors is used, so errors during the error page don't result in another error page.
+     *
+     * @param request The original request
+     * @param response The response, with the status already set
+     * @param page The location of the error page within the context
+     * @param code The status code
+     * @param message The error message, may be null
+     * @param servletName The name of the servlet that handled the request, may be null
+     * @param exc The exception that caused the error, may be null
+     * @throws ServletException In case of errors
+     * @throws IOException In case of I/O errors
+     */
+    private void dispatchError(HttpServletRequest request, HttpServletResponse response, String page, int code,
+            String message, String servletName, Throwable exc) throws ServletException, IOException {
+        response.resetBuffer();
+        request.setAttribute(RequestDispatcher.ERROR_STATUS_CODE, code);
+        request.setAttribute(RequestDispatcher.ERROR_REQUEST_URI, request.getRequestURI());
+        request.setAttribute(RequestDispatcher.ERROR_MESSAGE, message != null ? message :
+            exc != null ? exc.getMessage() : null);
+        if (servletName != null) {
+            request.setAttribute(RequestDispatcher.ERROR_SERVLET_NAME, servletName);
+        }
+        if (exc != null) {
+            request.setAttribute(RequestDispatcher.ERROR_EXCEPTION, exc);
+            request.setAttribute(RequestDispatcher.ERROR_EXCEPTION_TYPE, exc.getClass());
+        }
+        ChainCalculator.Chain chain = servletContext.getChain(DispatcherType.ERROR, page);
+        if (chain == null) {
+            OurServletRequest req = new OurServletRequest(request, response, servletContext, page, null, DispatcherType.ERROR);
+            if (!resources.serve(req, response, page)) {
+                servletContext.log("error page \"" + page + "\" not found, context: " +
+                        servletContext.getContextPath());
+                response.sendError(code, message);
+            }
+            return;
+        }
+        String pathInfo = page.substring(chain.servletPath.length());
+        OurServletRequest req = new OurServletRequest(request, response, servletContext, chain.servletPath, pathInfo,
+                DispatcherType.ERROR);
+        doWithClassLoader(() -> chain.chain.doFilter(req, response));
+    }
+
     /**
      * Call the initializers accessible from the specific class loader. This may result in additional changes to
      * the servlet context because the initializers may want to add event listeners or maybe even servlets to
@@ -234,4 +527,30 @@ public class DispatchingServlet implements Servlet {
                 context.getOwner().getBundleContext().registerService(ServletContext.class, context, dict);
         return registration;
     }
+
+    /**
+     * Register the statistics of the context as a service, with the same context path property as the context.
+     *
+     * @param context The context to register the statistics for
+     * @return The service registration
+     */
+    private static ServiceRegistration<WebContextStatistics> registerStatistics(OurServletContext context) {
+        Hashtable<String, Object> dict = new Hashtable<>();
+        dict.put("osgi.web.contextpath", context.getContextPath());
+        return context.getOwner().getBundleContext().registerService(WebContextStatistics.class,
+                context.getStatistics(), dict);
+    }
+
+    /**
+     * Register the latencies of the context as a service, with the same context path property as the context.
+     *
+     * @param context The context to register the latencies for
+     * @return The service registration
+     */
+    private static ServiceRegistration<WebContextLatencies> registerLatencies(OurServletContext context) {
+        Hashtable<String, Object> dict = new Hashtable<>();
+        dict.put("osgi.web.contextpath", context.getContextPath());
+        return context.getOwner().getBundleContext().registerService(WebContextLatencies.class,
+                context.getLatencies(), dict);
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolver of error pages for exceptions. The error page for an exception is the page defined for the most
+ * specific class in its class hierarchy. The result is kept per thrown class, so resolving the page for an
+ * exception that occurred before costs a single map lookup. A map is used instead of a ClassValue on purpose:
+ * a ClassValue entry on a system class like RuntimeException would keep the class loader of the web application
+ * alive after the context is destroyed.
+ */
+class ExceptionPages {
+    private static final String NONE = "";
+    private Map<Class<?>, String> pages;
+    private Map<Class<?>, String> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * Construct the resolver.
+     *
+     * @param pages The error pages per exception class as defined
+     */
+    ExceptionPages(Map<Class<?>, String> pages) {
+        this.pages = pages;
+    }
+
+    /**
+     * Get the root cause of an exception.
+     *
+     * @param exc The exception
+     * @return The innermost cause of the exception
+     */
+    static Throwable rootCause(Throwable exc) {
+        Throwable root = exc;
+        while (root.getCause() != null && root.getCause() != root) {
+            root = root.getCause();
+        }
+        return root;
+    }
+
+    /**
+     * Get the error page for an exception class.
+     *
+     * @param thrown The class of the exception thrown
+     * @return The location of the error page, null if no page is defined
+     */
+    String get(Class<?> thrown) {
+        String page = resolved.computeIfAbsent(thrown, (t) -> {
+            for (Class<?> c = t; c != null; c = c.getSuperclass()) {
+                String p = pages.get(c);
+                if (p != null) {
+                    return p;
+                }
+            }
+            return NONE;
+        });
+        return page == NONE ? null : page;
+    }
+}
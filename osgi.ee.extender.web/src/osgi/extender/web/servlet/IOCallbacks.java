@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Environment for the callbacks of non-blocking I/O. The container calls the read and write listeners on its own
+ * threads, outside the chain of the context. Around every callback, the class loader of the context is set and the
+ * request listeners are notified, the same way the dispatching servlet does around an asynchronous dispatch, so
+ * request scopes (like the one of CDI) are active during the callback. Since the request is in asynchronous mode,
+ * listeners know that the request itself isn't done. A callback made while the request isn't in asynchronous mode
+ * runs within the notifications of the request itself, so the listeners aren't notified again.
+ */
+class IOCallbacks {
+    private OurServletContext context;
+    private HttpServletRequest request;
+
+    interface Callback {
+        void run() throws IOException;
+    }
+
+    IOCallbacks(OurServletContext context, HttpServletRequest request) {
+        this.context = context;
+        this.request = request;
+    }
+
+    /**
+     * Run a callback in the environment of the context.
+     *
+     * @param callback The callback
+     * @throws IOException In case of I/O errors
+     */
+    void run(Callback callback) throws IOException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(context.getClassLoader());
+        ServletRequestEvent event = new ServletRequestEvent(context, request);
+        boolean notify = request.isAsyncStarted();
+        try {
+            if (notify) {
+                context.call(ServletRequestListener.class, (l) -> l.requestInitialized(event));
+            }
+            callback.run();
+        } finally {
+            if (notify) {
+                context.call(ServletRequestListener.class, (l) -> l.requestDestroyed(event));
+            }
+            Thread.currentThread().setContextClassLoader(loader);
+        }
+    }
+
+    /**
+     * Wrap a read listener.
+     *
+     * @param listener The listener of the application
+     * @return The listener to register with the container
+     */
+    ReadListener wrap(ReadListener listener) {
+        return new ReadListener() {
+            @Override
+            public void onDataAvailable() throws IOException {
+                run(listener::onDataAvailable);
+            }
+
+            @Override
+            public void onAllDataRead() throws IOException {
+                run(listener::onAllDataRead);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                runError(() -> listener.onError(t));
+            }
+        };
+    }
+
+    /**
+     * Wrap a write listener.
+     *
+     * @param listener The listener of the application
+     * @return The listener to register with the container
+     */
+    WriteListener wrap(WriteListener listener) {
+        return new WriteListener() {
+            @Override
+            public void onWritePossible() throws IOException {
+                run(listener::onWritePossible);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                runError(() -> listener.onError(t));
+            }
+        };
+    }
+
+    private void runError(Callback callback) {
+        try {
+            run(callback);
+        } catch (IOException exc) {
+            context.log("exception in error handling of non-blocking I/O", exc);
+        }
+    }
+}
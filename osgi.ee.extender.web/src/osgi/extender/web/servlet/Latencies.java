@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import osgi.extender.web.WebContextLatencies;
+
+/**
+ * Latency histograms of the servlets and filters of a servlet context. The histograms are kept when the chains
+ * are rebuilt, so they cover the lifetime of the context.
+ */
+class Latencies implements WebContextLatencies {
+    private String contextPath;
+    private Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    Latencies(String contextPath) {
+        this.contextPath = contextPath;
+    }
+
+    LatencyHistogram servlet(String name) {
+        return histograms.computeIfAbsent("servlet:" + name, (n) -> new LatencyHistogram());
+    }
+
+    LatencyHistogram filter(String name) {
+        return histograms.computeIfAbsent("filter:" + name, (n) -> new LatencyHistogram());
+    }
+
+    @Override
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    @Override
+    public Map<String, Latency> getLatencies() {
+        return new TreeMap<>(histograms);
+    }
+}
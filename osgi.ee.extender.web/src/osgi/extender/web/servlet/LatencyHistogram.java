@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import osgi.extender.web.WebContextLatencies;
+
+/**
+ * Histogram of latencies with log-linear buckets, like HdrHistogram: every power of two is split into 16 buckets,
+ * which gives a precision of about 6% over the complete range of values. Recording is lock-free. Reading while
+ * values are recorded gives a slightly inconsistent, but usable, view.
+ */
+class LatencyHistogram implements WebContextLatencies.Latency {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB);
+    private LongAdder count = new LongAdder();
+    private LongAdder errors = new LongAdder();
+    private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    private static int index(long value) {
+        if (value < SUB) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+        return (exponent - SUB_BITS + 1) * SUB + mantissa;
+    }
+
+    private static long upperValue(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int exponent = index / SUB + SUB_BITS - 1;
+        long mantissa = SUB + index % SUB;
+        return ((mantissa + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Record a call.
+     *
+     * @param latency The latency in nanoseconds
+     * @param error Whether the call ended with an exception
+     */
+    void record(long latency, boolean error) {
+        counts.incrementAndGet(index(latency));
+        count.increment();
+        max.accumulate(latency);
+        if (error) {
+            errors.increment();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int cnt = 0; cnt < counts.length(); cnt++) {
+            total += counts.get(cnt);
+        }
+        long target = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int cnt = 0; cnt < counts.length(); cnt++) {
+            seen += counts.get(cnt);
+            if (seen > 0 && seen >= target) {
+                return Math.min(upperValue(cnt), getMax());
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+}
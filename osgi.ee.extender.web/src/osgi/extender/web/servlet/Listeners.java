@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EventListener;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable snapshot of the event listeners of a context. The listeners for a specific listener interface
+ * are determined on first use and kept, so dispatching an event only costs a map lookup. A new snapshot
+ * must be created when the set of listeners changes.
+ */
+class Listeners {
+    private static final EventListener[] NONE = new EventListener[0];
+    private List<EventListener> all = new ArrayList<>();
+    private Map<Class<?>, EventListener[]> byType = new ConcurrentHashMap<>();
+
+    /**
+     * Create the snapshot from a number of listener collections.
+     *
+     * @param collections The listener collections, in the order in which the listeners must be called
+     */
+    @SafeVarargs
+    Listeners(Collection<? extends EventListener>... collections) {
+        for (Collection<? extends EventListener> c : collections) {
+            all.addAll(c);
+        }
+    }
+
+    /**
+     * Get the listeners that implement a specific listener interface.
+     *
+     * @param type The listener interface
+     * @return The listeners implementing it, in order. Must not be changed by the caller
+     */
+    EventListener[] get(Class<?> type) {
+        return byType.computeIfAbsent(type, (t) -> {
+            EventListener[] found = all.stream().filter((l) -> t.isInstance(l)).toArray(EventListener[]::new);
+            return found.length == 0 ? NONE : found;
+        });
+    }
+}
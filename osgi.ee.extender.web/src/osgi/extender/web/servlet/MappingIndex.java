@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Index on servlet/filter url-pattern mappings. The mappings are split into their three types: exact mappings
+ * are kept in a hash map, path (prefix) mappings in a character trie and extension (suffix) mappings in a
+ * character trie that is walked from the end of the path. A lookup therefore costs the length of the path
+ * instead of the number of mappings. The index is not changed after construction.
+ *
+ * @param <T> The type of the values that are mapped
+ */
+class MappingIndex<T> {
+    private Map<String, List<T>> exact = new HashMap<>();
+    private Node<T> prefixes = new Node<>();
+    private Node<T> suffixes = new Node<>();
+
+    /**
+     * Result of a best match lookup.
+     *
+     * @param <T> The type of the value matched
+     */
+    static class Match<T> {
+        final T value;
+        final int length;
+
+        Match(T v, int l) {
+            value = v;
+            length = l;
+        }
+    }
+
+    /**
+     * Add a mapping to the index.
+     *
+     * @param mapping The mapping, like "/exact", "/path/*" or "*.ext"
+     * @param value The value to map to
+     */
+    void add(String mapping, T value) {
+        if (mapping.startsWith("*")) {
+            suffixes.add(mapping.substring(1), true).values.add(value);
+        }
+        else if (mapping.endsWith("*")) {
+            prefixes.add(mapping.substring(0, mapping.length() - 1), false).values.add(value);
+        }
+        else {
+            exact.computeIfAbsent(mapping, (k) -> new ArrayList<>(1)).add(value);
+        }
+    }
+
+    /**
+     * Find the best matching value for a path. An exact match wins, followed by the longest path
+     * match and finally an extension match. The length returned follows the same rules as before:
+     * the length of the mapping for exact and path matches (excluding the asterisk) and 0 for extension matches.
+     *
+     * @param path The path to match
+     * @return The best match or null if nothing matches
+     */
+    Match<T> best(String path) {
+        List<T> found = exact.get(path);
+        if (found != null) {
+            return new Match<>(found.get(0), path.length());
+        }
+        // Walk the prefix trie and remember the deepest node that has values.
+        Node<T> node = prefixes;
+        Node<T> deepest = node.values.isEmpty() ? null : node;
+        int deepestLength = 0;
+        for (int cnt = 0; cnt < path.length() && (node = node.child(path.charAt(cnt))) != null; cnt++) {
+            if (!node.values.isEmpty()) {
+                deepest = node;
+                deepestLength = cnt + 1;
+            }
+        }
+        if (deepest != null) {
+            return new Match<>(deepest.values.get(0), deepestLength);
+        }
+        // Walk the suffix trie from the end of the path: any node with values is a match.
+        node = suffixes;
+        if (!node.values.isEmpty()) {
+            return new Match<>(node.values.get(0), 0);
+        }
+        for (int cnt = path.length() - 1; cnt >= 0 && (node = node.child(path.charAt(cnt))) != null; cnt--) {
+            if (!node.values.isEmpty()) {
+                return new Match<>(node.values.get(0), 0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pass all values that have a mapping matching a path to a consumer.
+     *
+     * @param path The path to match
+     * @param consumer The consumer that receives the matching values, possibly more than once
+     */
+    void all(String path, Consumer<T> consumer) {
+        List<T> found = exact.get(path);
+        if (found != null) {
+            found.forEach(consumer);
+        }
+        Node<T> node = prefixes;
+        node.values.forEach(consumer);
+        for (int cnt = 0; cnt < path.length() && (node = node.child(path.charAt(cnt))) != null; cnt++) {
+            node.values.forEach(consumer);
+        }
+        node = suffixes;
+        node.values.forEach(consumer);
+        for (int cnt = path.length() - 1; cnt >= 0 && (node = node.child(path.charAt(cnt))) != null; cnt--) {
+            node.values.forEach(consumer);
+        }
+    }
+
+    /**
+     * Node in a character trie. The children are kept in sorted arrays to keep the memory usage low.
+     */
+    private static class Node<T> {
+        private char[] keys = new char[0];
+        private Node<T>[] children = array(0);
+        private List<T> values = new ArrayList<>(1);
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private static <T> Node<T>[] array(int length) {
+            return new Node[length];
+        }
+
+        Node<T> child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        /**
+         * Add a key to the trie starting at this node.
+         *
+         * @param key The key to add
+         * @param reverse Whether to add the characters of the key from the end to the beginning
+         * @return The node for the complete key
+         */
+        Node<T> add(String key, boolean reverse) {
+            Node<T> node = this;
+            for (int cnt = 0; cnt < key.length(); cnt++) {
+                char c = key.charAt(reverse ? key.length() - 1 - cnt : cnt);
+                Node<T> next = node.child(c);
+                if (next == null) {
+                    next = new Node<>();
+                    int index = -Arrays.binarySearch(node.keys, c) - 1;
+                    char[] keys = new char[node.keys.length + 1];
+                    Node<T>[] children = array(keys.length);
+                    System.arraycopy(node.keys, 0, keys, 0, index);
+                    System.arraycopy(node.children, 0, children, 0, index);
+                    keys[index] = c;
+                    children[index] = next;
+                    System.arraycopy(node.keys, index, keys, index + 1, node.keys.length - index);
+                    System.arraycopy(node.children, index, children, index + 1, node.keys.length - index);
+                    node.keys = keys;
+                    node.children = children;
+                }
+                node = next;
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Asynchronous context of a request in a web context. The asynchronous mode of the container request is started,
+ * so the container thread is released, but dispatches within the web context are handled here: they run the chain
+ * of the context on the executor of the context, and complete the request unless asynchronous mode was started again.
+ * The completion action, that ends the request for the context, runs once, either by completion or when the
+ * container ends the request, for example because of a time-out. On an explicit completion, the finishing action
+ * runs first, while the response can still be written, for example to send an error page. Dispatches and completion
+ * requested while the thread that started asynchronous mode is still in the chain take effect once it has returned.
+ */
+class OurAsyncContext implements AsyncContext {
+    private AsyncContext parent;
+    private OurServletContext context;
+    private ServletRequest request;
+    private ServletResponse response;
+    private boolean original;
+    private Dispatcher dispatcher;
+    private volatile boolean started = true;
+    private AtomicBoolean completed = new AtomicBoolean();
+    private AtomicReference<Runnable> completion = new AtomicReference<>();
+    private volatile Finisher finisher;
+    // Guarded by this.
+    private boolean inService = true;
+    private Runnable deferred;
+    private boolean completeDeferred;
+    private boolean left;
+
+    /**
+     * Dispatching of a request within the web context.
+     */
+    interface Dispatcher {
+        void dispatch(ServletRequest request, ServletResponse response, String path, OurAsyncContext async)
+                throws ServletException, IOException;
+    }
+
+    /**
+     * Action to finish the response.
+     */
+    interface Finisher {
+        void finish() throws ServletException, IOException;
+    }
+
+    OurAsyncContext(AsyncContext parent, OurServletContext context, ServletRequest request, ServletResponse response,
+            boolean original, Dispatcher dispatcher) {
+        this.parent = parent;
+        this.context = context;
+        this.request = request;
+        this.response = response;
+        this.original = original;
+        this.dispatcher = dispatcher;
+        parent.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                completed.set(true);
+                completed();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                // The container completes or dispatches an error.
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                // The container completes or dispatches an error.
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+                // Not used.
+            }
+        });
+    }
+
+    /**
+     * Set the action to run when the request is done.
+     *
+     * @param completion The action
+     */
+    void setCompletion(Runnable completion) {
+        this.completion.set(completion);
+        if (completed.get()) {
+            completed();
+        }
+    }
+
+    /**
+     * Set the action to finish the response when the request is completed explicitly.
+     *
+     * @param finisher The action
+     */
+    void setFinisher(Finisher finisher) {
+        this.finisher = finisher;
+    }
+
+    private void completed() {
+        Runnable action = completion.getAndSet(null);
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    /**
+     * Called when the thread that started asynchronous mode has returned from the chain: a dispatch or completion
+     * requested meanwhile takes effect now. After an asynchronous dispatch, the request is completed unless
+     * asynchronous mode was started again or the request was dispatched to another context.
+     */
+    void returned() {
+        Runnable task;
+        boolean complete;
+        synchronized (this) {
+            inService = false;
+            task = deferred;
+            deferred = null;
+            complete = completeDeferred || (task == null && !started && !left);
+            completeDeferred = false;
+        }
+        if (complete) {
+            complete();
+        }
+        else if (task != null) {
+            start(task);
+        }
+    }
+
+    /**
+     * Start asynchronous mode again during an asynchronous dispatch.
+     *
+     * @return This context
+     */
+    OurAsyncContext restart() {
+        started = true;
+        return this;
+    }
+
+    boolean isStarted() {
+        return started && !completed.get();
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return request;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return response;
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return original;
+    }
+
+    @Override
+    public void dispatch() {
+        String path;
+        if (request instanceof HttpServletRequest) {
+            HttpServletRequest req = (HttpServletRequest) request;
+            path = req.getServletPath() + (req.getPathInfo() == null ? "" : req.getPathInfo());
+        }
+        else {
+            path = "/";
+        }
+        dispatch(path);
+    }
+
+    @Override
+    public void dispatch(String path) {
+        Runnable task = () -> {
+            synchronized (this) {
+                inService = true;
+            }
+            try {
+                dispatcher.dispatch(request, response, path, this);
+            } catch (Exception exc) {
+                context.log("exception during asynchronous dispatch to " + path, exc);
+            } finally {
+                returned();
+            }
+        };
+        synchronized (this) {
+            started = false;
+            if (inService) {
+                deferred = task;
+                return;
+            }
+        }
+        start(task);
+    }
+
+    @Override
+    public void dispatch(ServletContext ctx, String path) {
+        if (ctx == context) {
+            dispatch(path);
+            return;
+        }
+        synchronized (this) {
+            started = false;
+            left = true;
+        }
+        parent.dispatch(ctx, path);
+    }
+
+    @Override
+    public void complete() {
+        synchronized (this) {
+            if (inService) {
+                started = false;
+                completeDeferred = true;
+                return;
+            }
+        }
+        if (completed.compareAndSet(false, true)) {
+            try {
+                if (finisher != null) {
+                    finisher.finish();
+                }
+            } catch (Exception exc) {
+                context.log("exception while finishing an asynchronous request", exc);
+            }
+            try {
+                parent.complete();
+            } finally {
+                completed();
+            }
+        }
+    }
+
+    @Override
+    public void start(Runnable run) {
+        context.getAsyncExecutor().execute(() -> {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(context.getClassLoader());
+            try {
+                run.run();
+            } finally {
+                Thread.currentThread().setContextClassLoader(loader);
+            }
+        });
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+        parent.addListener(listener, request, response);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener, ServletRequest req, ServletResponse resp) {
+        parent.addListener(listener, req, resp);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> clz) throws ServletException {
+        return context.createListener(clz);
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+        parent.setTimeout(timeout);
+    }
+
+    @Override
+    public long getTimeout() {
+        return parent.getTimeout();
+    }
+}
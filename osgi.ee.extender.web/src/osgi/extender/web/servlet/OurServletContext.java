@@ -29,14 +29,26 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
-import javax.servlet.FilterChain;
 import javax.servlet.FilterRegistration;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.Servlet;
@@ -60,6 +72,8 @@ import javax.servlet.http.HttpSessionListener;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
@@ -84,13 +98,26 @@ public class OurServletContext implements ServletContext {
     private String resourceBase;
     private int maxInactive;
     private Map<String, String> initParameters = new HashMap<>();
-    private Map<String, Object> attributes = new HashMap<>();
-    private Map<String, DynamicFRegistration> filters = new HashMap<>();
-    private Map<String, DynamicSRegistration> servlets = new HashMap<>();
+    private Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private Map<String, DynamicFRegistration> filters = new ConcurrentHashMap<>();
+    private Map<String, DynamicSRegistration> servlets = new ConcurrentHashMap<>();
     private Collection<EventListener> listeners = new ArrayList<>();
+    private Collection<EventListener> trackedListeners = new ArrayList<>();
+    private volatile Listeners listenerSnapshot = new Listeners();
     private ServiceTracker<EventListener, EventListener> eventListenerTracker;
     private ServiceTracker<Filter, String> filterTracker;
     private ServiceTracker<Servlet, String> servletTracker;
+    private volatile ChainCalculator chainCalculator;
+    private int chainCacheSize;
+    private volatile ResourceIndex resourceIndex;
+    private BundleListener bundleListener = this::bundleChanged;
+    private Statistics statistics;
+    private Latencies latencies;
+    private LongAdder chainCacheHits;
+    private LongAdder chainCacheMisses;
+    private SessionRegistry sessions;
+    private StoredSessions storedSessions;
+    private ExecutorService asyncExecutor;
 
     /**
      * Base constructor, so specialities
@@ -104,6 +131,12 @@ public class OurServletContext implements ServletContext {
         classLoader = DelegatingClassLoader.from(bundle);
         this.context = context;
         this.resourceBase = resourceBase;
+        statistics = new Statistics(context);
+        latencies = new Latencies(context);
+        chainCacheHits = statistics.counter("chaincache.hits");
+        chainCacheMisses = statistics.counter("chaincache.misses");
+        sessions = new SessionRegistry(this, statistics);
+        storedSessions = new StoredSessions(this, statistics);
         // Required for a WAB according to the specification.
         setAttribute("osgi-bundlecontext", bundle.getBundleContext());
     }
@@ -118,6 +151,10 @@ public class OurServletContext implements ServletContext {
         // Set up the tracking of event listeners.
         BundleContext bc = getOwner().getBundleContext();
         delegate = parent;
+        bc.addBundleListener(bundleListener);
+        resourceIndex();
+        sessions.start();
+        storedSessions.start();
         Collection<Class<? extends EventListener>> toTrack = Arrays.asList(HttpSessionListener.class,
                 ServletRequestListener.class, HttpSessionAttributeListener.class, ServletRequestAttributeListener.class,
                 ServletContextListener.class);
@@ -125,13 +162,16 @@ public class OurServletContext implements ServletContext {
                 map((c) -> "(" + Constants.OBJECTCLASS + "=" + c.getName() + ")").collect(Collectors.toList());
         String filterString = "|" + String.join("", objectFilters);
         eventListenerTracker = startTracking(filterString,
-                new Tracker<EventListener, EventListener>(bc, getContextPath(), (e) -> e, (e) -> { /* No destruct */}));
+                new Tracker<EventListener, EventListener>(bc, getContextPath(), this::addTrackedListener,
+                        this::removeTrackedListener));
         // Initialize the servlets.
         ServletContextEvent event = new ServletContextEvent(this);
         call(ServletContextListener.class, (l) -> l.contextInitialized(event));
-        servlets.values().forEach((s) -> init(s));
-        // And the filters.
-        filters.values().forEach((f) -> init(f));
+        initAll();
+        // Publish the dispatch table.
+        String size = getInitParameter("osgi.extender.web.chaincache.size");
+        chainCacheSize = size == null ? 1000 : Integer.parseInt(size);
+        registrationsChanged();
         // Set up the tracking of servlets and filters.
         servletTracker = startTracking(Constants.OBJECTCLASS + "=" + Servlet.class.getName(),
                 new Tracker<Servlet, String>(bc, getContextPath(), this::addServlet, this::removeServlet));
@@ -150,6 +190,15 @@ public class OurServletContext implements ServletContext {
         ServletContextEvent event = new ServletContextEvent(this);
         call(ServletContextListener.class, (l) -> l.contextDestroyed(event));
         eventListenerTracker.close();
+        getOwner().getBundleContext().removeBundleListener(bundleListener);
+        storedSessions.stop();
+        sessions.stop();
+        synchronized (this) {
+            if (asyncExecutor != null) {
+                asyncExecutor.shutdown();
+                asyncExecutor = null;
+            }
+        }
     }
 
     private <T, C> ServiceTracker<T, C> startTracking(String filter, ServiceTrackerCustomizer<T, C> cust) {
@@ -223,22 +272,97 @@ public class OurServletContext implements ServletContext {
     private <T, R extends DynamicRegistration<T>> Function<T, R> adderFunction(
             String name, Map<String, R> container, BiFunction<String, T, R> supplier, Consumer<R> init) {
         return (o) -> {
-            if (container.containsKey(name)) {
+            R reg = supplier.apply(name, o);
+            if (container.putIfAbsent(name, reg) != null) {
                 return null;
             }
-            R reg = supplier.apply(name, o);
-            container.put(name, reg);
+            reg.setChangeListener(this::registrationsChanged);
             if (delegate != null) {
                 init.accept(reg);
             }
+            registrationsChanged();
             return reg;
         };
     }
 
+    /**
+     * Initialize the servlets with a load-on-startup value and the filters. The servlets are initialized in groups
+     * of the same load-on-startup value, in ascending order, and the servlets within a group in parallel. After
+     * that, the filters are initialized in parallel. The number of threads is set by the context parameter
+     * "osgi.extender.web.init.threads" (default the number of processors). The other servlets are initialized
+     * on first use.
+     */
+    private void initAll() {
+        Map<Integer, List<DynamicSRegistration>> groups = new TreeMap<>();
+        servlets.values().stream().filter((s) -> s.getLoadOnStartup() >= 0).forEach((s) ->
+            groups.computeIfAbsent(s.getLoadOnStartup(), (k) -> new ArrayList<>()).add(s));
+        int count = Runtime.getRuntime().availableProcessors();
+        String threads = getInitParameter("osgi.extender.web.init.threads");
+        if (threads != null) {
+            try {
+                count = Integer.parseInt(threads.trim());
+            } catch (NumberFormatException exc) {
+                log("invalid value \"" + threads + "\" for osgi.extender.web.init.threads, using " + count +
+                        " threads");
+            }
+        }
+        AtomicInteger sequence = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(count, 1), (r) -> {
+            Thread thread = new Thread(r, "web init " + getContextPath() + " #" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        });
+        boolean interrupted = false;
+        try {
+            for (List<DynamicSRegistration> group : groups.values()) {
+                interrupted |= initGroup(executor, group, this::init);
+            }
+            interrupted |= initGroup(executor, new ArrayList<>(filters.values()), this::init);
+        } finally {
+            executor.shutdown();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Initialize a group of servlets or filters in parallel and wait until all are done. An interrupt doesn't stop
+     * the initialization, since the context is reported as started afterwards.
+     *
+     * @return true if the thread was interrupted while waiting
+     */
+    private static <R> boolean initGroup(ExecutorService executor, Collection<R> group, Consumer<R> init) {
+        if (group.size() == 1) {
+            // No need to switch threads.
+            init.accept(group.iterator().next());
+            return false;
+        }
+        List<Future<?>> results = group.stream().map((r) -> executor.submit(() -> init.accept(r))).
+                collect(Collectors.toList());
+        boolean interrupted = false;
+        for (Future<?> result : results) {
+            while (true) {
+                try {
+                    result.get();
+                    break;
+                } catch (InterruptedException exc) {
+                    interrupted = true;
+                } catch (ExecutionException exc) {
+                    // The failure is logged by the initialization.
+                    break;
+                }
+            }
+        }
+        return interrupted;
+    }
+
     private void init(DynamicFRegistration filter) {
+        long start = System.nanoTime();
         try {
             filter.getObject().init(new RegistrationConfig(filter, this));
-            log("filter: " + filter + " initialized");
+            log("filter: " + filter + " initialized in " + (System.nanoTime() - start) / 1000000 + " ms");
         } catch (Exception exc) {
             exc.printStackTrace();
         }
@@ -248,8 +372,9 @@ public class OurServletContext implements ServletContext {
         if (filter == null) {
             return;
         }
-        filter.getObject().destroy();
         filters.remove(filter.getName());
+        registrationsChanged();
+        filter.getObject().destroy();
         log("filter: " + filter + " initialized");
     }
 
@@ -301,9 +426,12 @@ public class OurServletContext implements ServletContext {
         if (reg == null) {
             return null;
         }
-        reg.addMappingForUrlPatterns(EnumSet.allOf(DispatcherType.class), false, ann.urlPatterns());
-        reg.addMappingForServletNames(EnumSet.allOf(DispatcherType.class), false, ann.servletNames());
+        EnumSet<DispatcherType> types = EnumSet.noneOf(DispatcherType.class);
+        types.addAll(Arrays.asList(ann.dispatcherTypes()));
+        reg.addMappingForUrlPatterns(types, false, ann.urlPatterns());
+        reg.addMappingForServletNames(types, false, ann.servletNames());
         doParameters(reg, ann.initParams());
+        reg.setAsyncSupported(ann.asyncSupported());
         return name;
     }
 
@@ -311,13 +439,39 @@ public class OurServletContext implements ServletContext {
         destroy(filters.get(name));
     }
 
+    /**
+     * Create a new listener snapshot after the set of listeners has changed. Must be called with the
+     * listeners locked.
+     */
+    private void listenersChanged() {
+        listenerSnapshot = new Listeners(listeners, trackedListeners);
+    }
+
     private <T extends EventListener> Function<T, Void> listenerAdder() {
         return (l) -> {
-            listeners.add(l);
+            synchronized (listeners) {
+                listeners.add(l);
+                listenersChanged();
+            }
             return null;
         };
     }
 
+    private EventListener addTrackedListener(EventListener listener) {
+        synchronized (listeners) {
+            trackedListeners.add(listener);
+            listenersChanged();
+        }
+        return listener;
+    }
+
+    private void removeTrackedListener(EventListener listener) {
+        synchronized (listeners) {
+            trackedListeners.remove(listener);
+            listenersChanged();
+        }
+    }
+
     @Override
     public <T extends EventListener> void addListener(T listener) {
         listenerAdder().apply(listener);
@@ -325,9 +479,12 @@ public class OurServletContext implements ServletContext {
 
     @Override
     public void addListener(Class<? extends EventListener> clz) {
-        if (!listeners.stream().filter((e) -> e.getClass().equals(clz)).findAny().isPresent()) {
-            instance(clz, listenerAdder());
+        synchronized (listeners) {
+            if (listeners.stream().filter((e) -> e.getClass().equals(clz)).findAny().isPresent()) {
+                return;
+            }
         }
+        instance(clz, listenerAdder());
     }
 
     @Override
@@ -335,12 +492,22 @@ public class OurServletContext implements ServletContext {
         instance(clzName, listenerAdder());
     }
 
+    /**
+     * Initialize a servlet, once. Also called on first use of a servlet that isn't initialized yet.
+     */
     private void init(DynamicSRegistration servlet) {
-        try {
-            servlet.getObject().init(new RegistrationConfig(servlet, this));
-            log("servlet: " + servlet + " initialized");
-        } catch (Exception exc) {
-            exc.printStackTrace();
+        synchronized (servlet) {
+            if (servlet.isInitialized()) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                servlet.getObject().init(new RegistrationConfig(servlet, this));
+                log("servlet: " + servlet + " initialized in " + (System.nanoTime() - start) / 1000000 + " ms");
+            } catch (Exception exc) {
+                exc.printStackTrace();
+            }
+            servlet.setInitialized(true);
         }
     }
 
@@ -348,8 +515,14 @@ public class OurServletContext implements ServletContext {
         if (servlet == null) {
             return;
         }
-        servlet.getObject().destroy();
         servlets.remove(servlet.getName());
+        registrationsChanged();
+        synchronized (servlet) {
+            if (!servlet.isInitialized()) {
+                return;
+            }
+            servlet.getObject().destroy();
+        }
         log("servlet: " + servlet + " destroyed");
     }
 
@@ -406,6 +579,8 @@ public class OurServletContext implements ServletContext {
             return null;
         }
         doParameters(reg, ann.initParams());
+        reg.setAsyncSupported(ann.asyncSupported());
+        reg.setLoadOnStartup(ann.loadOnStartup());
         reg.addMapping(ann.urlPatterns());
         return name;
     }
@@ -496,56 +671,35 @@ public class OurServletContext implements ServletContext {
     }
 
     /**
-     * Perform a lookup of paths in the current context. The handling handles a META-INF directory below
-     * the WEB-INF/classes path as special, assuming that it may contain definition files like
-     * facelets tag library definitions, etc. It is therefore regarded as a symbolic link to all
-     * files in META-INF directories in dependency bundles.
+     * Get the resource index of this context, building it if it isn't there (anymore).
      *
-     * @param relative The relative path to look for, as requested to this context
-     * @param toApply A function to apply for finding URLs
-     * @return A map with as key the logical path, and as value the URL mapping to it
+     * @return The resource index
      */
-    private Map<String, URL> lookFor(String relative, BiFunction<Bundle, String, Collection<URL>> toApply) {
-        Collection<Bundle> process = null;
-        String toLookFor = null;
-        Function<String, String> postProcess = (s) -> s;
-        final String METAINF = "WEB-INF/classes/META-INF";
-        int index = relative.indexOf(METAINF);
-        if (index >= 0) {
-            // It is a meta lookup.
-            process = DelegatingClassLoader.getDependencies(getOwner());
-            toLookFor = "META-INF" + relative.substring(index + METAINF.length());
-            postProcess = (s) -> s.replace("META-INF", METAINF);
-        }
-        else if (resourceBase != null) {
-            // It is a resource lookup.
-            toLookFor = resourceBase + "/" + relative;
-            toLookFor  = toLookFor.replaceAll("[\\/]+", "/");
-            process = Arrays.asList(getOwner());
-            postProcess = (s) -> "/" + s.substring(resourceBase.length());
-        }
-        if (process == null) {
-            return null;
+    private ResourceIndex resourceIndex() {
+        ResourceIndex index = resourceIndex;
+        if (index == null) {
+            index = new ResourceIndex(getOwner(), resourceBase, DelegatingClassLoader.getDependencies(getOwner()));
+            resourceIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Bundle listener that drops the resource index when one of the bundles it was built from changes.
+     *
+     * @param event The bundle event
+     */
+    private void bundleChanged(BundleEvent event) {
+        ResourceIndex index = resourceIndex;
+        if (index != null && index.contains(event.getBundle()) && (event.getType() &
+                (BundleEvent.UPDATED | BundleEvent.UNRESOLVED | BundleEvent.RESOLVED | BundleEvent.UNINSTALLED)) != 0) {
+            resourceIndex = null;
         }
-        String lookFor = toLookFor;
-        Function<String, String> postOp = postProcess;
-        Map<String, URL> out = new HashMap<>();
-        process.stream().map((b) -> toApply.apply(b, lookFor)).
-            flatMap((c) -> c.stream()).
-            filter((u) -> u != null).forEach((url) -> {
-                String name = postOp.apply(url.getPath());
-                out.put(name, url);
-            });
-        return out;
     }
 
     @Override
     public URL getResource(String name) throws MalformedURLException {
-        Map<String, URL> resources = lookFor(name, (b, n) -> Arrays.asList(b.getEntry(n)));
-        if (resources != null && resources.size() > 0) {
-            return resources.values().iterator().next();
-        }
-        return null;
+        return resourceIndex().getResource(name);
     }
 
     @Override
@@ -560,19 +714,7 @@ public class OurServletContext implements ServletContext {
 
     @Override
     public Set<String> getResourcePaths(String rel) {
-        // Look for resources, nested.
-        Map<String, URL> resources = lookFor(rel, (b, n) -> {
-            Enumeration<URL> urls = b.findEntries(n, "*", false);
-            List<URL> urlCollection = new ArrayList<>();
-            if (urls != null) {
-                urlCollection.addAll(Collections.list(urls));
-            }
-            return urlCollection;
-        });
-        if (resources == null) {
-            return null;
-        }
-        return resources.keySet();
+        return resourceIndex().getResourcePaths(rel);
     }
 
     @Override
@@ -638,19 +780,28 @@ public class OurServletContext implements ServletContext {
 
     @Override
     public void removeAttribute(String attr) {
-        ServletContextAttributeEvent event = new ServletContextAttributeEvent(this, attr, attributes.remove(attr));
-        call(ServletContextAttributeListener.class, (l) -> l.attributeRemoved(event));
+        Object original = attributes.remove(attr);
+        if (original != null) {
+            ServletContextAttributeEvent event = new ServletContextAttributeEvent(this, attr, original);
+            call(ServletContextAttributeListener.class, (l) -> l.attributeRemoved(event));
+        }
     }
 
     @Override
     public void setAttribute(String attr, Object value) {
-        Object original = attributes.get(attr);
-        attributes.put(attr, value);
-        ServletContextAttributeEvent event = new ServletContextAttributeEvent(this, attr, value);
+        // Servlets may be initialized in parallel. A value of null is handled as a remove.
+        if (value == null) {
+            removeAttribute(attr);
+            return;
+        }
+        Object original = attributes.put(attr, value);
         if (original != null) {
+            // The event of a replacement carries the original value.
+            ServletContextAttributeEvent event = new ServletContextAttributeEvent(this, attr, original);
             call(ServletContextAttributeListener.class, (l) -> l.attributeReplaced(event));
         }
         else {
+            ServletContextAttributeEvent event = new ServletContextAttributeEvent(this, attr, value);
             call(ServletContextAttributeListener.class, (l) -> l.attributeAdded(event));
         }
     }
@@ -702,20 +853,37 @@ public class OurServletContext implements ServletContext {
         return maxInactive;
     }
 
-    <T extends EventListener> void call(Class<T> type, Consumer<T> cons) {
-        List<EventListener> allListeners = new ArrayList<>();
-        allListeners.addAll(listeners);
-        if (eventListenerTracker != null) {
-            allListeners.addAll(eventListenerTracker.getTracked().values());
+    /**
+     * Get the executor for asynchronous requests, created when first needed. The number of threads is set by the
+     * context parameter "osgi.extender.web.async.threads" (default 16). Idle threads are stopped after a minute.
+     *
+     * @return The executor
+     */
+    synchronized Executor getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            String value = getInitParameter("osgi.extender.web.async.threads");
+            int threads = value == null ? 16 : Integer.parseInt(value);
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), (r) -> {
+                        Thread thread = new Thread(r, "web async " + getContextPath() + " " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            asyncExecutor = executor;
         }
-        allListeners.stream().filter((l) -> type.isAssignableFrom(l.getClass())).
-            map((l) -> type.cast(l)).forEach((l) -> {
+        return asyncExecutor;
+    }
+
+    <T extends EventListener> void call(Class<T> type, Consumer<T> cons) {
+        for (EventListener l : listenerSnapshot.get(type)) {
             try {
-                cons.accept(l);
+                cons.accept(type.cast(l));
             } catch (Exception exc) {
                 log("could not perform call on: " + l, exc);
             }
-        });
+        }
     }
 
     void setDelegate(ServletContext parent) {
@@ -726,8 +894,60 @@ public class OurServletContext implements ServletContext {
         return owner;
     }
 
-    FilterChain getChain(String path, StringBuffer servletPath) {
-        return ChainCalculator.getChain(filters, servlets, path, servletPath);
+    /**
+     * Publish a new dispatch table because servlets or filters or their mappings have changed. The table is
+     * immutable and replaced as a whole, so request threads use it without locking. Before the context is
+     * initialized nothing is published: the table is built once during initialization.
+     */
+    private void registrationsChanged() {
+        if (delegate == null) {
+            return;
+        }
+        synchronized (servlets) {
+            chainCalculator = new ChainCalculator(filters, servlets, chainCacheSize, chainCacheHits, chainCacheMisses,
+                    latencies, this::init);
+        }
+    }
+
+    /**
+     * Get the chain to execute for a path.
+     *
+     * @param type The dispatcher type for which the chain is executed
+     * @param path The path, meaning the URI without the context
+     * @return The chain or null if no servlet matches the path
+     */
+    ChainCalculator.Chain getChain(DispatcherType type, String path) {
+        ChainCalculator calculator = chainCalculator;
+        if (calculator == null) {
+            return null;
+        }
+        return calculator.getChain(type, path);
+    }
+
+    Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Register a statistic that is maintained outside of the context, like by the extender setting up the context.
+     *
+     * @param name The name of the counter
+     * @param value The supplier of the current value
+     */
+    public void registerStatistic(String name, LongSupplier value) {
+        statistics.register(name, value);
+    }
+
+    Latencies getLatencies() {
+        return latencies;
+    }
+
+    SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    StoredSessions getStoredSessions() {
+        return storedSessions;
     }
 
     @Override
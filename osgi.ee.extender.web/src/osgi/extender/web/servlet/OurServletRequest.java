@@ -15,9 +15,17 @@
  */
 package osgi.extender.web.servlet;
 
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 /**
@@ -26,16 +34,136 @@ import javax.servlet.http.HttpSession;
  */
 class OurServletRequest extends HttpServletRequestWrapper {
     private OurServletContext context;
+    private HttpServletResponse response;
     private String pathInfo;
     private String servletPath;
+    private DispatcherType dispatcherType;
+    private OurAsyncContext.Dispatcher asyncDispatcher;
+    private OurAsyncContext asyncContext;
+    private OurAsyncContext.Finisher asyncFinisher;
+    private Runnable asyncCompletion;
+    private IOCallbacks callbacks;
+    private ServletInputStream inputStream;
 
-    public OurServletRequest(HttpServletRequest request, OurServletContext context, String servletPath, String pathInfo) {
+    public OurServletRequest(HttpServletRequest request, HttpServletResponse response, OurServletContext context,
+            String servletPath, String pathInfo) {
         super(request);
+        this.response = response;
         this.context = context;
+        callbacks = new IOCallbacks(context, this);
         this.pathInfo = pathInfo;
         this.servletPath = servletPath;
     }
 
+    /**
+     * Constructor for a request that is dispatched internally, like for error pages. The request URI reflects
+     * the path dispatched to.
+     */
+    OurServletRequest(HttpServletRequest request, HttpServletResponse response, OurServletContext context,
+            String servletPath, String pathInfo, DispatcherType type) {
+        this(request, response, context, servletPath, pathInfo);
+        this.dispatcherType = type;
+    }
+
+    /**
+     * Allow asynchronous mode for the request, because the chain it is handled by supports it.
+     *
+     * @param dispatcher The dispatcher for asynchronous dispatches
+     * @param async The asynchronous context if the request is dispatched from one, otherwise null
+     */
+    void enableAsync(OurAsyncContext.Dispatcher dispatcher, OurAsyncContext async) {
+        asyncDispatcher = dispatcher;
+        asyncContext = async;
+    }
+
+    /**
+     * Allow asynchronous mode for a request from the container. The actions are set on the asynchronous context
+     * as soon as it is created, so they are in place whatever happens after.
+     *
+     * @param dispatcher The dispatcher for asynchronous dispatches
+     * @param finisher The action to finish the response on completion
+     * @param completion The action that ends the request
+     */
+    void enableAsync(OurAsyncContext.Dispatcher dispatcher, OurAsyncContext.Finisher finisher, Runnable completion) {
+        enableAsync(dispatcher, null);
+        asyncFinisher = finisher;
+        asyncCompletion = completion;
+    }
+
+    IOCallbacks getCallbacks() {
+        return callbacks;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        if (inputStream == null) {
+            inputStream = new OurServletInputStream(super.getInputStream(), callbacks);
+        }
+        return inputStream;
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+        return asyncDispatcher != null && (asyncContext != null || super.isAsyncSupported());
+    }
+
+    @Override
+    public AsyncContext startAsync() {
+        return startAsync(this, response);
+    }
+
+    @Override
+    public AsyncContext startAsync(ServletRequest req, ServletResponse resp) {
+        if (!isAsyncSupported()) {
+            throw new IllegalStateException("asynchronous mode is not supported by the servlet or filters");
+        }
+        if (asyncContext != null) {
+            // Started again during an asynchronous dispatch.
+            return asyncContext.restart();
+        }
+        AsyncContext parent = request().startAsync(req, resp);
+        asyncContext = new OurAsyncContext(parent, context, req, resp, req == this && resp == response,
+                asyncDispatcher);
+        asyncContext.setFinisher(asyncFinisher);
+        asyncContext.setCompletion(asyncCompletion);
+        return asyncContext;
+    }
+
+    @Override
+    public boolean isAsyncStarted() {
+        return asyncContext != null && asyncContext.isStarted();
+    }
+
+    @Override
+    public AsyncContext getAsyncContext() {
+        if (asyncContext == null) {
+            throw new IllegalStateException("asynchronous mode not started");
+        }
+        return asyncContext;
+    }
+
+    /**
+     * Get the asynchronous context of the request, if any.
+     *
+     * @return The context, null if asynchronous mode was never started
+     */
+    OurAsyncContext getOurAsyncContext() {
+        return asyncContext;
+    }
+
+    @Override
+    public DispatcherType getDispatcherType() {
+        return dispatcherType == null ? super.getDispatcherType() : dispatcherType;
+    }
+
+    @Override
+    public String getRequestURI() {
+        if (dispatcherType == null) {
+            return super.getRequestURI();
+        }
+        return getContextPath() + servletPath + (pathInfo == null ? "" : pathInfo);
+    }
+
     @Override
     public String getContextPath() {
         return context.getContextPath();
@@ -67,16 +195,25 @@ class OurServletRequest extends HttpServletRequestWrapper {
 
     @Override
     public HttpSession getSession(boolean create) {
+        String key = OurSession.sessionKey(context);
+        if (context.getStoredSessions().isEnabled()) {
+            return getStoredSession(key, create);
+        }
         HttpSession session = request().getSession(create);
         if (session == null) {
             return null;
         }
         // Check if we have our session there.
-        String key = OurSession.sessionKey(context);
         OurSession ours = (OurSession) session.getAttribute(key);
         if (ours == null || !ours.isValid()) {
+            if (ours != null) {
+                // Expired, but not reaped yet.
+                ours.invalidate();
+                ours = null;
+            }
             if (create) {
                 ours = new OurSession(context, session);
+                context.getSessions().add(ours);
                 session.setAttribute(key, ours);
             }
         }
@@ -85,4 +222,19 @@ class OurServletRequest extends HttpServletRequestWrapper {
         }
         return ours;
     }
+
+    /**
+     * Get the session from the session store. The session is kept as request attribute, so it is only looked up
+     * once per request and can be written back when the request is done.
+     */
+    private HttpSession getStoredSession(String key, boolean create) {
+        OurSession ours = (OurSession) request().getAttribute(key);
+        if (ours == null || !ours.isValid()) {
+            ours = context.getStoredSessions().resolve(request(), response, create);
+            if (ours != null) {
+                request().setAttribute(key, ours);
+            }
+        }
+        return ours;
+    }
 }
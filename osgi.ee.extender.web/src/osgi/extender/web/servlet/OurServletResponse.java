@@ -16,53 +16,253 @@
 package osgi.extender.web.servlet;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.Map;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
 /**
- * Servlet response wrapper. Handles the error pages because of error setting, etc.
+ * Servlet response wrapper. Handles the error pages because of error setting, etc.: when an error page is defined
+ * for a status code, the error is recorded and the error page is dispatched to after the request is handled.
+ * When callbacks are set, the output stream runs the write listener callbacks in the environment of the context.
+ * When compression is set, the output is compressed if worth it, and the response must be finished explicitly.
  */
 public class OurServletResponse extends HttpServletResponseWrapper {
     private Map<Integer, String> errors;
-    private String context;
+    private int errorCode;
+    private String errorMessage;
+    private IOCallbacks callbacks;
+    private ServletOutputStream outputStream;
+    private Compression compression;
+    private CompressingOutputStream compressed;
+    private PrintWriter writer;
 
-    public OurServletResponse(HttpServletResponse response, String context, Map<Integer, String> errors) {
+    public OurServletResponse(HttpServletResponse response, Map<Integer, String> errors) {
         super(response);
         this.errors = errors;
-        this.context = context;
     }
 
-    private String codeToUrl(int code) {
-        String page = errors.get(code);
-        if (page != null) {
-            try {
-                sendRedirect(context + page);
-            } catch (Exception exc) {
-                exc.printStackTrace();
-            }
+    void setCallbacks(IOCallbacks callbacks) {
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * Set the compression settings, if the client accepts compressed responses.
+     *
+     * @param compression The settings
+     */
+    void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    private ServletOutputStream stream() throws IOException {
+        if (outputStream == null) {
+            outputStream = callbacks == null ? super.getOutputStream() :
+                new OurServletOutputStream(super.getOutputStream(), callbacks);
+        }
+        return outputStream;
+    }
+
+    private CompressingOutputStream compressing() {
+        if (compressed == null) {
+            compressed = new CompressingOutputStream((HttpServletResponse) getResponse(), compression, this::stream);
+        }
+        return compressed;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        return compression == null ? stream() : compressing();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (compression == null) {
+            return super.getWriter();
+        }
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(compressing(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    /**
+     * Finish the response after the request is handled: writes out what is buffered for compression.
+     *
+     * @throws IOException In case of I/O errors
+     */
+    void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (compressed != null) {
+            compressed.finish();
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (compressed != null) {
+            compressed.flush();
+        }
+        super.flushBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (writer != null) {
+            writer.flush();
+        }
+        // Fails if committed. The compressed stream restarts afterwards, since its header is written to the buffer.
+        super.resetBuffer();
+        if (compressed != null) {
+            compressed.reset();
+        }
+    }
+
+    @Override
+    public void reset() {
+        resetBuffer();
+        super.reset();
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        setContentLengthLong(len);
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        if (compression == null) {
+            super.setContentLengthLong(len);
+        }
+        else {
+            compressing().setContentLength(len);
+        }
+    }
+
+    private boolean isContentLength(String name) {
+        return compression != null && "Content-Length".equalsIgnoreCase(name);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (isContentLength(name)) {
+            setContentLengthLong(Long.parseLong(value));
+        }
+        else {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (isContentLength(name)) {
+            setContentLengthLong(Long.parseLong(value));
+        }
+        else {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (isContentLength(name)) {
+            setContentLengthLong(value);
+        }
+        else {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    /**
+     * Record an error if there is an error page for it.
+     *
+     * @param code The status code
+     * @param message The error message, may be null
+     * @return true if the error is recorded for an error page
+     */
+    private boolean errorPage(int code, String message) {
+        if (!errors.containsKey(code) || isCommitted()) {
+            return false;
+        }
+        errorCode = code;
+        errorMessage = message;
+        super.setStatus(code);
+        return true;
+    }
+
+    /**
+     * Get the error page to dispatch to.
+     *
+     * @return The location of the error page for a recorded error, null if there is none
+     */
+    String getErrorPage() {
+        return errors.get(errorCode);
+    }
+
+    int getErrorCode() {
+        return errorCode;
+    }
+
+    String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Get the response to send an error page with. It doesn't record errors, but shares the output with this
+     * response, so a started compression continues. The error page must be finished with {@link #finish()}.
+     *
+     * @return The response
+     */
+    OurServletResponse forErrorPage() {
+        OurServletResponse response = new OurServletResponse((HttpServletResponse) getResponse(),
+                Collections.emptyMap());
+        response.compression = compression;
+        response.compressed = compressed;
+        return response;
+    }
+
+    /**
+     * Check whether the container can send its own error page. That isn't possible anymore once compressed output
+     * is started, since the content encoding header cannot be removed. The error is then sent without a body.
+     */
+    private boolean containerError(int sc) {
+        if (compressed == null || isCommitted()) {
+            return true;
+        }
+        resetBuffer();
+        if (!compressed.isCompressing()) {
+            return true;
         }
-        return page;
+        super.setStatus(sc);
+        return false;
     }
 
     @Override
     public void sendError(int sc, String msg) throws IOException {
-        if (codeToUrl(sc) == null) {
+        if (!errorPage(sc, msg) && containerError(sc)) {
             super.sendError(sc, msg);
         }
     }
 
     @Override
     public void sendError(int sc) throws IOException {
-        if (codeToUrl(sc) == null) {
+        if (!errorPage(sc, null) && containerError(sc)) {
             super.sendError(sc);
         }
     }
 
     @Override
     public void setStatus(int sc) {
-        if (codeToUrl(sc) == null) {
+        if (!errorPage(sc, null)) {
             super.setStatus(sc);
         }
     }
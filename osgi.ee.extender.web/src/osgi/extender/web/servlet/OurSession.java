@@ -15,15 +15,33 @@
  */
 package osgi.extender.web.servlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionActivationListener;
 import javax.servlet.http.HttpSessionAttributeListener;
 import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
@@ -31,34 +49,87 @@ import javax.servlet.http.HttpSessionContext;
 import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 
+import osgi.extender.web.SessionStore;
+
 /**
- * Implementation of the HTTP session interface.
+ * Implementation of the HTTP session interface. Requests of the same client may use a session concurrently, so
+ * the attributes are kept in a concurrent map. Session identifiers consist of a sequence number, which makes them
+ * unique, and a random part, which makes them unpredictable. Both are generated without locking.
+ * An idle session can be passivated: its serializable attributes are moved to the passivation store until the
+ * session is used again. Attribute access shares a read lock, passivation and activation take the write lock.
+ * A session without a parent session is kept in a session store. For such a session, the names of the changed
+ * attributes are tracked, so only those are written back. Its times are kept in the store too, so it expires at
+ * the same time on every node.
  */
 @SuppressWarnings("deprecation")
 class OurSession implements HttpSession, HttpSessionBindingListener {
-    private Map<String, Object> attributes = new HashMap<>();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    private Map<String, Object> attributes = new ConcurrentHashMap<>();
     private long created;
     private String id;
     private long lastAccessed;
     private int maxInactive;
     private OurServletContext context;
     private HttpSession parent;
-    private static int sequence;
+    private AtomicBoolean destroyed = new AtomicBoolean();
+    private ReadWriteLock state = new ReentrantReadWriteLock();
+    private volatile PassivationStore.Handle passivated;
+    private PassivationStore store;
+    private Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private volatile long version;
+    private volatile long storedExpiry;
+    private AtomicBoolean writePending = new AtomicBoolean();
+
+    /**
+     * Object input stream that resolves the classes with the class loader of the context.
+     */
+    private static class ContextInputStream extends ObjectInputStream {
+        private ClassLoader loader;
+
+        ContextInputStream(InputStream in, ClassLoader loader) throws IOException {
+            super(in);
+            this.loader = loader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, loader);
+            } catch (ClassNotFoundException exc) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
 
     OurSession(OurServletContext context, HttpSession parent) {
+        this(context, parent, nextId());
+    }
+
+    /**
+     * Constructor for a session with a known identifier.
+     *
+     * @param context The context of the session
+     * @param parent The session of the container, null if the session is kept in a session store
+     * @param id The identifier
+     */
+    OurSession(OurServletContext context, HttpSession parent, String id) {
         this.context = context;
         this.parent = parent;
-        synchronized (context) {
-            created = lastAccessed = System.currentTimeMillis();
-            id = new Long(created).toString() + sequence++;
-        }
+        this.id = id;
+        created = lastAccessed = System.currentTimeMillis();
         int inact = context.getMaxInactive();
         if (inact <= 0) {
-            inact = parent.getMaxInactiveInterval();
+            inact = parent == null ? 30 : parent.getMaxInactiveInterval();
         }
         setMaxInactiveInterval(inact);
     }
 
+    private static String nextId() {
+        long random = RANDOM.get().nextLong() & Long.MAX_VALUE;
+        return Long.toString(random, 36) + "." + Long.toString(SEQUENCE.incrementAndGet(), 36);
+    }
+
     static String sessionKey(ServletContext context) {
         return HttpSession.class.getName() + ".session$$" + context;
     }
@@ -66,13 +137,13 @@ class OurSession implements HttpSession, HttpSessionBindingListener {
     @Override
     public Object getAttribute(String name) {
         checkValid();
-        return attributes.get(name);
+        return active(() -> attributes.get(name));
     }
 
     @Override
     public Enumeration<String> getAttributeNames() {
         checkValid();
-        return Collections.enumeration(attributes.keySet());
+        return active(() -> Collections.enumeration(new ArrayList<>(attributes.keySet())));
     }
 
     @Override
@@ -120,15 +191,36 @@ class OurSession implements HttpSession, HttpSessionBindingListener {
     @Deprecated
     @Override
     public String[] getValueNames() {
-        return attributes.keySet().toArray(new String[attributes.size()]);
+        return active(() -> attributes.keySet().toArray(new String[0]));
     }
 
     @Override
     public void invalidate() {
+        if (!destroyed.compareAndSet(false, true)) {
+            return;
+        }
+        context.getSessions().remove(this);
+        if (parent == null) {
+            context.getStoredSessions().remove(this);
+        }
         destroy();
         lastAccessed = 0;
     }
 
+    /**
+     * Expire the session because it isn't used anymore. A session kept in a session store may still be used by other
+     * nodes, so only the local copy is dropped. It is loaded from the store again when used on time, otherwise it is
+     * removed from the store by the reaper.
+     */
+    void expire() {
+        if (parent != null) {
+            invalidate();
+            return;
+        }
+        context.getSessions().remove(this);
+        discard();
+    }
+
     @Override
     public boolean isNew() {
         return lastAccessed == created;
@@ -148,30 +240,33 @@ class OurSession implements HttpSession, HttpSessionBindingListener {
         }
     }
 
-    private boolean unbindOriginal(String name) {
-        Object original = attributes.get(name);
-        if (original == null) {
-            return false;
-        }
-        checkBindingListener(name, original, (l, e) -> l.valueUnbound(e));
-        return true;
-    }
-
     private void notifyListeners(String name, Object value, BiConsumer<HttpSessionAttributeListener, HttpSessionBindingEvent> listener) {
         HttpSessionBindingEvent event = new HttpSessionBindingEvent(this, name, value);
         context.call(HttpSessionAttributeListener.class, (l) -> listener.accept(l, event));
     }
 
-    private void _removeAttribute(String name) {
-        unbindOriginal(name);
-        attributes.remove(name);
-        notifyListeners(name, null, (l, e) -> l.attributeRemoved(e));
+    private Object take(String name) {
+        Object original = attributes.remove(name);
+        if (original != null && parent == null) {
+            dirty.add(name);
+        }
+        return original;
+    }
+
+    private void removed(String name, Object original) {
+        checkBindingListener(name, original, (l, e) -> l.valueUnbound(e));
+        notifyListeners(name, original, (l, e) -> l.attributeRemoved(e));
     }
 
     @Override
     public void removeAttribute(String name) {
         checkValid();
-        _removeAttribute(name);
+        // Only the thread that actually removed the value does the notifications, without the lock, since a
+        // listener may invalidate the session.
+        Object original = active(() -> take(name));
+        if (original != null) {
+            removed(name, original);
+        }
     }
 
     @Override
@@ -187,27 +282,49 @@ class OurSession implements HttpSession, HttpSessionBindingListener {
             return;
         }
         checkValid();
-        // See how to notify our listeners: as a replacement or an addition.
-        BiConsumer<HttpSessionAttributeListener, HttpSessionBindingEvent> notifier = (l, e) -> l.attributeAdded(e);
-        if (unbindOriginal(name)) {
-            notifier = (l, e) -> l.attributeReplaced(e);
+        // The new value is bound before it becomes visible, the original one unbound after it is replaced. The
+        // listeners are notified without the lock, like for a removal.
+        if (value != active(() -> attributes.get(name))) {
+            checkBindingListener(name, value, (l, e) -> l.valueBound(e));
+        }
+        Object original = active(() -> {
+            Object replaced = attributes.put(name, value);
+            if (parent == null) {
+                dirty.add(name);
+            }
+            return replaced;
+        });
+        if (original == null) {
+            notifyListeners(name, value, (l, e) -> l.attributeAdded(e));
+            return;
         }
-        // Update the data.
-        attributes.put(name, value);
-        // And perform the notification.
-        notifyListeners(name, value, notifier);
+        if (original != value) {
+            checkBindingListener(name, original, (l, e) -> l.valueUnbound(e));
+        }
+        // The event of a replacement carries the original value.
+        notifyListeners(name, original, (l, e) -> l.attributeReplaced(e));
     }
 
     @Override
     public void setMaxInactiveInterval(int interval) {
         maxInactive = interval < 0 ? 3000 : interval;
-        if (parent.getMaxInactiveInterval() < maxInactive) {
+        if (parent != null && parent.getMaxInactiveInterval() < maxInactive) {
             parent.setMaxInactiveInterval(maxInactive);
         }
+        context.getSessions().reschedule(this);
+    }
+
+    /**
+     * Get the time at which the session expires when it isn't accessed anymore.
+     *
+     * @return The expiry time in milliseconds
+     */
+    long getExpiryTime() {
+        return lastAccessed + maxInactive * 60 * 1000L;
     }
 
     boolean isValid() {
-        return lastAccessed >= created && lastAccessed + maxInactive * 60 * 1000 > System.currentTimeMillis();
+        return !destroyed.get() && lastAccessed >= created && getExpiryTime() > System.currentTimeMillis();
     }
 
     private void checkValid() {
@@ -217,8 +334,256 @@ class OurSession implements HttpSession, HttpSessionBindingListener {
     }
 
     private void destroy() {
-        new ArrayList<>(attributes.keySet()).forEach((k) -> _removeAttribute(k));
-        parent.removeAttribute(sessionKey(context));
+        Map<String, Object> removed = active(() -> {
+            Map<String, Object> values = new HashMap<>();
+            new ArrayList<>(attributes.keySet()).forEach((k) -> {
+                Object original = take(k);
+                if (original != null) {
+                    values.put(k, original);
+                }
+            });
+            return values;
+        });
+        // Notified without the lock, since an unbound value may need the session exclusively.
+        removed.forEach(this::removed);
+        if (parent != null) {
+            parent.removeAttribute(sessionKey(context));
+        }
+        else {
+            valueUnbound(null);
+        }
+    }
+
+    /**
+     * Perform an action on the attributes. The session is activated first when needed and cannot be passivated
+     * during the action.
+     */
+    private <T> T active(Supplier<T> action) {
+        state.readLock().lock();
+        try {
+            while (passivated != null) {
+                state.readLock().unlock();
+                try {
+                    activate();
+                } finally {
+                    state.readLock().lock();
+                }
+            }
+            return action.get();
+        } finally {
+            state.readLock().unlock();
+        }
+    }
+
+    /**
+     * Passivate the session if it is idle for a while. The serializable attributes are written to the store
+     * and removed from memory. Nothing happens if the session is in use.
+     *
+     * @param store The store to write to
+     * @param idle The idle time in milliseconds after which the session is passivated
+     */
+    void passivate(PassivationStore store, long idle) {
+        if (!state.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            if (passivated != null || !isValid() || System.currentTimeMillis() - lastAccessed < idle) {
+                return;
+            }
+            Map<String, Object> values = new HashMap<>();
+            attributes.forEach((k, v) -> {
+                if (v instanceof Serializable) {
+                    values.put(k, v);
+                }
+            });
+            if (values.isEmpty()) {
+                return;
+            }
+            HttpSessionEvent event = new HttpSessionEvent(this);
+            values.values().stream().filter((v) -> v instanceof HttpSessionActivationListener).
+                forEach((v) -> ((HttpSessionActivationListener) v).sessionWillPassivate(event));
+            try {
+                passivated = store.write(serialize(values));
+            } catch (IOException exc) {
+                // Not serializable after all, the attributes stay in memory.
+                context.log("could not passivate session " + id, exc);
+                activated(values.values());
+                return;
+            }
+            this.store = store;
+            values.keySet().forEach(attributes::remove);
+        } finally {
+            state.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Restore the attributes of a passivated session.
+     */
+    @SuppressWarnings("unchecked")
+    private void activate() {
+        state.writeLock().lock();
+        try {
+            if (passivated == null) {
+                return;
+            }
+            byte[] data = store.read(passivated);
+            passivated = null;
+            try {
+                Map<String, Object> values = (Map<String, Object>) deserialize(data, context.getClassLoader());
+                attributes.putAll(values);
+                activated(values.values());
+            } catch (IOException | ClassNotFoundException exc) {
+                context.log("could not restore the attributes of session " + id, exc);
+            }
+        } finally {
+            state.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Serialize a value.
+     *
+     * @param value The value
+     * @return The serialized form
+     * @throws IOException If the value cannot be serialized
+     */
+    static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize a value.
+     *
+     * @param data The serialized form
+     * @param loader The class loader to resolve the classes with
+     * @return The value
+     * @throws IOException In case of errors
+     * @throws ClassNotFoundException If a class of the value cannot be found
+     */
+    static Object deserialize(byte[] data, ClassLoader loader) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ContextInputStream(new ByteArrayInputStream(data), loader)) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Replace the attributes by the ones loaded from the session store.
+     *
+     * @param values The attributes
+     * @param version The version in the store
+     * @param times The times in the store, which also give the maximum inactive interval
+     */
+    void restore(Map<String, Object> values, long version, SessionStore.Times times) {
+        state.writeLock().lock();
+        try {
+            discard();
+            attributes.clear();
+            attributes.putAll(values);
+            dirty.clear();
+            this.version = version;
+            created = times.created;
+            lastAccessed = times.lastAccessed;
+            storedExpiry = times.expiry;
+            int inact = (int) ((times.expiry - times.lastAccessed) / (60 * 1000L));
+            if (inact > 0) {
+                maxInactive = inact;
+            }
+            activated(values.values());
+        } finally {
+            state.writeLock().unlock();
+        }
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Called when the session is written to the session store.
+     *
+     * @param version The new version in the store
+     * @param expiry The expiry time that was written
+     */
+    void stored(long version, long expiry) {
+        this.version = version;
+        storedExpiry = expiry;
+    }
+
+    /**
+     * Check whether the session must be written to the session store: when it has changes or hasn't been written
+     * at all. An unchanged session is written as well when it has been accessed since, so the expiry time in the
+     * store stays current and other nodes don't expire a session that is still in use.
+     */
+    boolean needsWrite() {
+        return parent == null && (!dirty.isEmpty() || version == 0 || getExpiryTime() > storedExpiry);
+    }
+
+    /**
+     * Set whether a write of the session is pending.
+     *
+     * @return true if the value changed
+     */
+    boolean setWritePending(boolean pending) {
+        return writePending.compareAndSet(!pending, pending);
+    }
+
+    /**
+     * Check whether the session has changes that are not in the session store yet, including those being written.
+     */
+    boolean hasPendingChanges() {
+        return writePending.get() || !dirty.isEmpty();
+    }
+
+    /**
+     * Get and clear the names of the changed attributes.
+     */
+    Set<String> takeDirty() {
+        Set<String> names = new HashSet<>();
+        for (String name : dirty) {
+            dirty.remove(name);
+            names.add(name);
+        }
+        return names;
+    }
+
+    void markDirty(Set<String> names) {
+        dirty.addAll(names);
+    }
+
+    /**
+     * Get the value of an attribute to store. Unlike getAttribute, it doesn't check the validity.
+     */
+    Object getStoredValue(String name) {
+        return active(() -> attributes.get(name));
+    }
+
+    /**
+     * Discard the passivated attributes, if any, without restoring them.
+     */
+    private void discard() {
+        state.writeLock().lock();
+        try {
+            if (passivated != null) {
+                store.free(passivated);
+                passivated = null;
+            }
+        } finally {
+            state.writeLock().unlock();
+        }
+    }
+
+    private void activated(Iterable<Object> values) {
+        HttpSessionEvent event = new HttpSessionEvent(this);
+        values.forEach((v) -> {
+            if (v instanceof HttpSessionActivationListener) {
+                ((HttpSessionActivationListener) v).sessionDidActivate(event);
+            }
+        });
     }
 
     @Override
@@ -228,6 +593,9 @@ class OurSession implements HttpSession, HttpSessionBindingListener {
 
     @Override
     public void valueUnbound(HttpSessionBindingEvent event) {
+        // May also be called because the parent session is invalidated.
+        context.getSessions().remove(this);
+        discard();
         context.call(HttpSessionListener.class, (l) -> l.sessionDestroyed(new HttpSessionEvent(this)));
     }
 }
\ No newline at end of file
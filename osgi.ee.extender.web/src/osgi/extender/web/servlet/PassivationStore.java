@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * Store for the attributes of passivated sessions, shared by all contexts. The data is appended to memory mapped
+ * segment files in the data area of the web extender bundle. A record is never changed: when a session is
+ * activated, its record becomes garbage. Segments without live records are removed and segments that are mostly
+ * garbage are compacted by moving their live records to the current segment. The segment size can be set with the
+ * framework property "osgi.extender.web.passivation.segment" (default 16MB).
+ */
+class PassivationStore {
+    private static PassivationStore instance;
+    private BundleContext bundleContext;
+    private File directory;
+    private int segmentSize;
+    private Segment current;
+    private List<Segment> segments = new ArrayList<>();
+    private int sequence;
+    private LongAdder passivated = new LongAdder();
+    private LongAdder restored = new LongAdder();
+    private LongAdder compacted = new LongAdder();
+
+    /**
+     * The location of a record. The location changes when the record is moved by a compaction.
+     */
+    static class Handle {
+        private Segment segment;
+        private int offset;
+        private int length;
+    }
+
+    private static class Segment {
+        private File file;
+        private MappedByteBuffer buffer;
+        private int position;
+        private int live;
+        private Set<Handle> handles = new HashSet<>();
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        int free() {
+            return buffer.capacity() - position;
+        }
+
+        void release() {
+            // The mapping itself is released on garbage collection.
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private PassivationStore(BundleContext context, File directory) {
+        bundleContext = context;
+        this.directory = directory;
+        String size = context.getProperty("osgi.extender.web.passivation.segment");
+        segmentSize = size == null ? 16 * 1024 * 1024 : Integer.parseInt(size);
+    }
+
+    /**
+     * Get the store of the web extender.
+     *
+     * @return The store, null if the extender bundle isn't active or has no data area
+     */
+    static synchronized PassivationStore instance() {
+        Bundle bundle = FrameworkUtil.getBundle(PassivationStore.class);
+        if (bundle == null || bundle.getBundleContext() == null) {
+            return null;
+        }
+        // The extender may have been restarted.
+        if (instance == null || instance.bundleContext != bundle.getBundleContext()) {
+            File directory = bundle.getBundleContext().getDataFile("sessions");
+            if (directory == null) {
+                return null;
+            }
+            // Passivated sessions don't survive a restart.
+            File[] old = directory.listFiles();
+            if (old != null) {
+                for (File f : old) {
+                    f.delete();
+                }
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                return null;
+            }
+            instance = new PassivationStore(bundle.getBundleContext(), directory);
+        }
+        return instance;
+    }
+
+    /**
+     * Store a record.
+     *
+     * @param data The data of the record
+     * @return The handle to retrieve the data with
+     * @throws IOException In case of I/O errors
+     */
+    synchronized Handle write(byte[] data) throws IOException {
+        Handle handle = new Handle();
+        append(handle, ByteBuffer.wrap(data));
+        passivated.add(data.length);
+        return handle;
+    }
+
+    private void append(Handle handle, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (current == null || current.free() < length) {
+            current = new Segment(new File(directory, Integer.toString(++sequence)), Math.max(segmentSize, length));
+            segments.add(current);
+        }
+        ByteBuffer target = current.buffer.duplicate();
+        target.position(current.position);
+        target.put(data);
+        handle.segment = current;
+        handle.offset = current.position;
+        handle.length = length;
+        current.position += length;
+        current.live += length;
+        current.handles.add(handle);
+    }
+
+    /**
+     * Read a record and remove it from the store.
+     *
+     * @param handle The handle of the record
+     * @return The data of the record
+     */
+    synchronized byte[] read(Handle handle) {
+        byte[] data = new byte[handle.length];
+        ByteBuffer source = handle.segment.buffer.duplicate();
+        source.position(handle.offset);
+        source.get(data);
+        restored.add(data.length);
+        free(handle);
+        return data;
+    }
+
+    /**
+     * Remove a record without reading it.
+     *
+     * @param handle The handle of the record
+     */
+    synchronized void free(Handle handle) {
+        Segment segment = handle.segment;
+        if (segment == null || !segment.handles.remove(handle)) {
+            return;
+        }
+        handle.segment = null;
+        segment.live -= handle.length;
+        if (segment.live == 0 && segment != current) {
+            segments.remove(segment);
+            segment.release();
+            compacted.add(segment.position);
+        }
+    }
+
+    /**
+     * Compact the segments of which less than a quarter is live data.
+     */
+    synchronized void compact() {
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (segment == current || segment.live * 4L >= segment.position) {
+                continue;
+            }
+            try {
+                for (Handle handle : segment.handles) {
+                    ByteBuffer source = segment.buffer.duplicate();
+                    source.position(handle.offset).limit(handle.offset + handle.length);
+                    append(handle, source);
+                }
+            } catch (IOException exc) {
+                exc.printStackTrace();
+                return;
+            }
+            segments.remove(segment);
+            segment.release();
+            compacted.add(segment.position - segment.live);
+        }
+    }
+
+    /**
+     * Register the store values with the statistics of a context.
+     *
+     * @param statistics The statistics
+     */
+    void register(Statistics statistics) {
+        statistics.register("passivation.passivated.bytes", passivated::sum);
+        statistics.register("passivation.restored.bytes", restored::sum);
+        statistics.register("passivation.compacted.bytes", compacted::sum);
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * Content cache for bundle resources, shared by all contexts. Small entries are kept on the heap, large entries
+ * are extracted once to the data area of the web extender bundle and memory mapped. Both parts are bounded
+ * in size and the least recently used entries are evicted first. Entries are keyed on bundle, last modification
+ * time and path, and are removed when their bundle is updated or uninstalled. Gzip compressed variants are
+ * cached like the other entries.
+ * The limits can be set with the framework properties "osgi.extender.web.resourcecache.heap" (default 16MB),
+ * "osgi.extender.web.resourcecache.mapped" (default 256MB) and "osgi.extender.web.resourcecache.small"
+ * (the maximum size of a heap entry, default 64KB).
+ */
+class ResourceCache {
+    private static ResourceCache instance;
+    private static final Content NOT_SMALLER = new HeapContent(new byte[0]);
+    private BundleContext bundleContext;
+    private Map<String, Content> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private File directory;
+    private long maxHeap;
+    private long maxMapped;
+    private long maxSmall;
+    private long heapBytes;
+    private long mappedBytes;
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+    private AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Content of a cached resource.
+     */
+    abstract static class Content {
+        final long length;
+
+        Content(long length) {
+            this.length = length;
+        }
+
+        /**
+         * Write (part of) the content to an output stream.
+         *
+         * @param out The output stream
+         * @param start The start position
+         * @param count The number of bytes to write
+         * @throws IOException In case of I/O errors
+         */
+        abstract void write(OutputStream out, long start, long count) throws IOException;
+
+        void release() {
+            // Nothing by default.
+        }
+    }
+
+    private static class HeapContent extends Content {
+        private byte[] data;
+
+        HeapContent(byte[] data) {
+            super(data.length);
+            this.data = data;
+        }
+
+        @Override
+        void write(OutputStream out, long start, long count) throws IOException {
+            out.write(data, (int) start, (int) count);
+        }
+    }
+
+    private static class MappedContent extends Content {
+        private File file;
+        private MappedByteBuffer buffer;
+
+        MappedContent(File file, long length) throws IOException {
+            super(length);
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+        }
+
+        @Override
+        void write(OutputStream out, long start, long count) throws IOException {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) start).limit((int) (start + count));
+            // Hand the mapped buffer directly to the container if its stream is a channel.
+            WritableByteChannel channel = out instanceof WritableByteChannel ?
+                    (WritableByteChannel) out : Channels.newChannel(out);
+            while (slice.hasRemaining()) {
+                channel.write(slice);
+            }
+        }
+
+        @Override
+        void release() {
+            // The mapping itself is released on garbage collection.
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private ResourceCache(BundleContext context) {
+        bundleContext = context;
+        maxHeap = property(context, "heap", 16 * 1024 * 1024);
+        // A single mapping cannot exceed 2GB.
+        maxMapped = Math.min(property(context, "mapped", 256 * 1024 * 1024), Integer.MAX_VALUE);
+        maxSmall = property(context, "small", 64 * 1024);
+        directory = context.getDataFile("resources");
+        if (directory != null) {
+            // Remove the content of previous runs.
+            File[] old = directory.listFiles();
+            if (old != null) {
+                for (File f : old) {
+                    f.delete();
+                }
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                directory = null;
+            }
+        }
+        context.addBundleListener((e) -> {
+            if ((e.getType() & (BundleEvent.UPDATED | BundleEvent.UNINSTALLED)) != 0) {
+                remove(e.getBundle());
+            }
+        });
+    }
+
+    private static long property(BundleContext context, String name, long def) {
+        String value = context.getProperty("osgi.extender.web.resourcecache." + name);
+        return value == null ? def : Long.parseLong(value);
+    }
+
+    /**
+     * Get the cache of the web extender.
+     *
+     * @return The cache, null if the extender bundle isn't active
+     */
+    static synchronized ResourceCache instance() {
+        Bundle bundle = FrameworkUtil.getBundle(ResourceCache.class);
+        if (bundle == null || bundle.getBundleContext() == null) {
+            return null;
+        }
+        // The extender may have been restarted.
+        if (instance == null || instance.bundleContext != bundle.getBundleContext()) {
+            instance = new ResourceCache(bundle.getBundleContext());
+        }
+        return instance;
+    }
+
+    private static String key(Bundle bundle, String path) {
+        return bundle.getBundleId() + "/" + bundle.getLastModified() + path;
+    }
+
+    /**
+     * Get the content of a bundle resource, loading it if it isn't cached yet.
+     *
+     * @param bundle The bundle containing the resource
+     * @param path The path of the resource, used as key within the bundle
+     * @param url The URL to load the resource from
+     * @return The content or null if the resource is too large to be cached
+     * @throws IOException In case of I/O errors
+     */
+    Content get(Bundle bundle, String path, URL url) throws IOException {
+        String key = key(bundle, path);
+        synchronized (this) {
+            Content content = entries.get(key);
+            if (content != null) {
+                hits.increment();
+                return content;
+            }
+        }
+        misses.increment();
+        URLConnection connection = url.openConnection();
+        long length = connection.getContentLengthLong();
+        if (length > maxMapped || (directory == null && length > maxSmall)) {
+            return null;
+        }
+        try (InputStream in = connection.getInputStream()) {
+            return add(key, load(in));
+        }
+    }
+
+    /**
+     * Get the gzip compressed variant of a resource, compressing it if it isn't cached yet. Only resources that fit
+     * in the heap part of the cache are compressed.
+     *
+     * @param bundle The bundle containing the resource
+     * @param path The path of the resource, used as key within the bundle
+     * @param content The uncompressed content
+     * @return The compressed content or null if compression doesn't make it smaller or it is too large to be cached
+     * @throws IOException In case of I/O errors
+     */
+    Content getCompressed(Bundle bundle, String path, Content content) throws IOException {
+        String key = key(bundle, path) + "\u0000gzip";
+        synchronized (this) {
+            Content compressed = entries.get(key);
+            if (compressed != null) {
+                hits.increment();
+                return compressed == NOT_SMALLER ? null : compressed;
+            }
+        }
+        misses.increment();
+        if (content.length > maxHeap) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            content.write(out, 0, content.length);
+        }
+        Content compressed = bytes.size() < content.length ?
+                load(new ByteArrayInputStream(bytes.toByteArray())) : NOT_SMALLER;
+        compressed = add(key, compressed);
+        return compressed == NOT_SMALLER ? null : compressed;
+    }
+
+    /**
+     * Add loaded content to the cache, unless another thread was first.
+     *
+     * @return The cached content, null if there is no content
+     */
+    private Content add(String key, Content content) {
+        if (content == null) {
+            return null;
+        }
+        synchronized (this) {
+            Content existing = entries.putIfAbsent(key, content);
+            if (existing != null) {
+                content.release();
+                return existing;
+            }
+            if (content instanceof HeapContent) {
+                heapBytes += content.length;
+            }
+            else {
+                mappedBytes += content.length;
+            }
+            evict();
+        }
+        return content;
+    }
+
+    /**
+     * Load the content from a stream. The content is read into memory and written to a file as soon as it
+     * becomes too large for the heap.
+     */
+    private Content load(InputStream in) throws IOException {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        byte[] data = new byte[8192];
+        int read;
+        while ((read = in.read(data)) > 0) {
+            memory.write(data, 0, read);
+            if (memory.size() > maxSmall) {
+                break;
+            }
+        }
+        if (read <= 0) {
+            return new HeapContent(memory.toByteArray());
+        }
+        if (directory == null) {
+            return null;
+        }
+        File file = new File(directory, Long.toString(sequence.incrementAndGet()));
+        long size = memory.size();
+        try (OutputStream out = new FileOutputStream(file)) {
+            memory.writeTo(out);
+            while ((read = in.read(data)) > 0 && size <= maxMapped) {
+                out.write(data, 0, read);
+                size += read;
+            }
+        }
+        if (size > maxMapped) {
+            file.delete();
+            return null;
+        }
+        return new MappedContent(file, size);
+    }
+
+    /**
+     * Evict the least recently used entries until both parts of the cache are within their limits.
+     * Must be called while synchronized.
+     */
+    private void evict() {
+        Iterator<Content> it = entries.values().iterator();
+        while ((heapBytes > maxHeap || mappedBytes > maxMapped) && it.hasNext()) {
+            Content content = it.next();
+            boolean heap = content instanceof HeapContent;
+            if (heap && heapBytes > maxHeap) {
+                heapBytes -= content.length;
+            }
+            else if (!heap && mappedBytes > maxMapped) {
+                mappedBytes -= content.length;
+            }
+            else {
+                continue;
+            }
+            it.remove();
+            content.release();
+            evictions.increment();
+        }
+    }
+
+    private synchronized void remove(Bundle bundle) {
+        String prefix = bundle.getBundleId() + "/";
+        Iterator<Map.Entry<String, Content>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Content> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                Content content = entry.getValue();
+                if (content instanceof HeapContent) {
+                    heapBytes -= content.length;
+                }
+                else {
+                    mappedBytes -= content.length;
+                }
+                it.remove();
+                content.release();
+            }
+        }
+    }
+
+    /**
+     * Register the cache values with the statistics of a context.
+     *
+     * @param statistics The statistics
+     */
+    void register(Statistics statistics) {
+        statistics.register("resourcecache.heap.bytes", () -> {
+            synchronized (this) {
+                return heapBytes;
+            }
+        });
+        statistics.register("resourcecache.mapped.bytes", () -> {
+            synchronized (this) {
+                return mappedBytes;
+            }
+        });
+        statistics.register("resourcecache.entries", () -> {
+            synchronized (this) {
+                return entries.size();
+            }
+        });
+        statistics.register("resourcecache.hits", hits::sum);
+        statistics.register("resourcecache.misses", misses::sum);
+        statistics.register("resourcecache.evictions", evictions::sum);
+    }
+}
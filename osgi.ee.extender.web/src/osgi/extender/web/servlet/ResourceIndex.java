@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Index of the resources of a servlet context. The entries of the bundle below the resource base are indexed by
+ * their path in the context. The META-INF directory below WEB-INF/classes is handled as special: it is regarded
+ * as a symbolic link to all files in META-INF directories of the dependency bundles, since it may contain definition
+ * files like facelets tag library definitions, etc. The index is not changed after construction.
+ */
+class ResourceIndex {
+    static final String METAINF = "/WEB-INF/classes/META-INF";
+    private Map<String, URL> resources = new HashMap<>();
+    private Map<String, Set<String>> resourcePaths = new HashMap<>();
+    private Map<String, URL> metaResources = new HashMap<>();
+    private Map<String, Set<String>> metaResourcePaths = new HashMap<>();
+    private Set<Bundle> bundles = new HashSet<>();
+    private boolean hasResources;
+
+    /**
+     * Build the index.
+     *
+     * @param owner The bundle containing the resources
+     * @param resourceBase The base path within the bundle, may be null if the context has no resources
+     * @param dependencies The dependency bundles of which the META-INF directories are indexed
+     */
+    ResourceIndex(Bundle owner, String resourceBase, Collection<Bundle> dependencies) {
+        if (resourceBase != null) {
+            hasResources = true;
+            String base = normalize(resourceBase + "/");
+            bundles.add(owner);
+            index(owner.findEntries(base, "*", true), base.length() - 1, "", resources, resourcePaths);
+        }
+        dependencies.forEach((b) -> {
+            bundles.add(b);
+            index(b.findEntries("META-INF", "*", true), "/META-INF".length(), METAINF, metaResources, metaResourcePaths);
+        });
+    }
+
+    /**
+     * Normalize a path: make sure it starts with a slash and doesn't contain multiple slashes in a row.
+     */
+    static String normalize(String path) {
+        StringBuilder builder = new StringBuilder(path.length() + 1);
+        char previous = 0;
+        for (int cnt = 0; cnt < path.length(); cnt++) {
+            char c = path.charAt(cnt);
+            if (c == '\\') {
+                c = '/';
+            }
+            if (c != '/' || previous != '/') {
+                if (cnt == 0 && c != '/') {
+                    builder.append('/');
+                }
+                builder.append(c);
+            }
+            previous = c;
+        }
+        return builder.length() == 0 ? "/" : builder.toString();
+    }
+
+    private static void index(Enumeration<URL> urls, int skip, String prefix, Map<String, URL> entries,
+            Map<String, Set<String>> paths) {
+        if (urls == null) {
+            return;
+        }
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            String path = prefix + normalize(url.getPath()).substring(skip);
+            entries.putIfAbsent(path, url);
+            // Register the path with its parent directories.
+            while (path.length() > 1) {
+                int index = path.lastIndexOf('/', path.length() - 2);
+                String parent = path.substring(0, index + 1);
+                if (!paths.computeIfAbsent(parent, (p) -> new TreeSet<>()).add(path)) {
+                    break;
+                }
+                path = parent;
+            }
+        }
+    }
+
+    /**
+     * Check whether the index depends on a specific bundle.
+     *
+     * @param bundle The bundle
+     * @return true if the bundle contributed to the index
+     */
+    boolean contains(Bundle bundle) {
+        return bundles.contains(bundle);
+    }
+
+    /**
+     * Get the URL of a resource.
+     *
+     * @param name The path of the resource in the context
+     * @return The URL or null if the resource doesn't exist
+     */
+    URL getResource(String name) {
+        String path = normalize(name);
+        Map<String, URL> entries = resources;
+        if (path.contains(METAINF)) {
+            path = path.substring(path.indexOf(METAINF));
+            entries = metaResources;
+        }
+        URL url = entries.get(path);
+        if (url == null && !path.endsWith("/")) {
+            // May be a directory.
+            url = entries.get(path + "/");
+        }
+        return url;
+    }
+
+    /**
+     * Get the resource paths directly below a directory.
+     *
+     * @param name The directory path in the context
+     * @return The paths of the entries in the directory, directories ending with a slash. Null if the context
+     * has no resources at all
+     */
+    Set<String> getResourcePaths(String name) {
+        String path = normalize(name + "/");
+        Set<String> found;
+        if (path.contains(METAINF)) {
+            found = metaResourcePaths.get(path.substring(path.indexOf(METAINF)));
+        }
+        else if (hasResources) {
+            found = resourcePaths.get(path);
+        }
+        else {
+            return null;
+        }
+        return found == null ? Collections.emptySet() : Collections.unmodifiableSet(found);
+    }
+}
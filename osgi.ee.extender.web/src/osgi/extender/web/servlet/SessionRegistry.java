@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the sessions of a context. Sessions are expired proactively by a reaper that uses a hashed timing
+ * wheel: a session is put in the slot of the tick in which it expires. Every tick, the sessions in the current slot
+ * are checked. Since a session is not moved when it is accessed, a checked session may turn out to be still valid,
+ * in which case it is moved to the slot of its new expiry time. All registries share a single timer thread.
+ * When the context parameter "osgi.extender.web.session.passivation.idle" is set, the reaper also passivates the
+ * sessions that have been idle for that number of seconds. Every minute, it has the expired sessions removed from
+ * the session store, if there is one.
+ */
+class SessionRegistry {
+    private static final long TICK = 1000L;
+    private static final int SLOTS = 512;
+    private static final int PASSIVATION_TICKS = 10;
+    private static final int STORE_TICKS = 60;
+    private static ScheduledExecutorService timer;
+    private static int users;
+    private OurServletContext context;
+    private Statistics statistics;
+    private PassivationStore store;
+    private long passivationIdle;
+    private Map<String, OurSession> sessions = new ConcurrentHashMap<>();
+    private List<Set<OurSession>> wheel = new ArrayList<>(SLOTS);
+    private long lastTick;
+    private ScheduledFuture<?> task;
+    private LongAdder created;
+    private LongAdder expired;
+
+    SessionRegistry(OurServletContext context, Statistics statistics) {
+        this.context = context;
+        this.statistics = statistics;
+        for (int cnt = 0; cnt < SLOTS; cnt++) {
+            wheel.add(ConcurrentHashMap.newKeySet());
+        }
+        created = statistics.counter("sessions.created");
+        expired = statistics.counter("sessions.expired");
+        statistics.register("sessions.active", () -> sessions.size());
+    }
+
+    private static int slot(long time) {
+        return (int) ((time / TICK) % SLOTS);
+    }
+
+    /**
+     * Start the reaper.
+     */
+    void start() {
+        String idle = context.getInitParameter("osgi.extender.web.session.passivation.idle");
+        if (idle != null && Long.parseLong(idle) > 0) {
+            store = PassivationStore.instance();
+            if (store != null) {
+                passivationIdle = Long.parseLong(idle) * 1000L;
+                store.register(statistics);
+            }
+        }
+        synchronized (SessionRegistry.class) {
+            if (users++ == 0) {
+                timer = Executors.newSingleThreadScheduledExecutor((r) -> {
+                    Thread thread = new Thread(r, "web session reaper");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            lastTick = System.currentTimeMillis() / TICK;
+            task = timer.scheduleAtFixedRate(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the reaper. The sessions that are still there are left to the parent sessions.
+     */
+    void stop() {
+        synchronized (SessionRegistry.class) {
+            if (task == null) {
+                return;
+            }
+            task.cancel(false);
+            task = null;
+            if (--users == 0) {
+                timer.shutdown();
+                timer = null;
+            }
+        }
+    }
+
+    /**
+     * Add a newly created session.
+     *
+     * @param session The session
+     */
+    void add(OurSession session) {
+        sessions.put(session.getId(), session);
+        wheel.get(slot(session.getExpiryTime())).add(session);
+        created.increment();
+    }
+
+    /**
+     * Reschedule a session because its expiry time has been brought forward. The session may end up in two slots,
+     * which is harmless.
+     *
+     * @param session The session
+     */
+    void reschedule(OurSession session) {
+        if (sessions.get(session.getId()) == session) {
+            wheel.get(slot(session.getExpiryTime())).add(session);
+        }
+    }
+
+    /**
+     * Remove a session that is destroyed. It is removed from the wheel when its slot is processed.
+     *
+     * @param session The session
+     */
+    void remove(OurSession session) {
+        sessions.remove(session.getId(), session);
+    }
+
+    /**
+     * Get a session by its identifier.
+     *
+     * @param id The session identifier
+     * @return The session or null if it doesn't exist (anymore)
+     */
+    OurSession get(String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Process the slots of the ticks passed since the previous run. The listeners of the sessions are called with
+     * the class loader of the context, as for requests. Nothing may escape, since that would cancel the reaper for good.
+     */
+    private void tick() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(context.getClassLoader());
+            reap();
+        } catch (Throwable exc) {
+            context.log("session reaper failed", exc);
+        }
+        finally {
+            Thread.currentThread().setContextClassLoader(loader);
+        }
+    }
+
+    private void reap() {
+        long now = System.currentTimeMillis();
+        long current = now / TICK;
+        // After a long pause, every slot needs to be checked once.
+        long from = Math.max(lastTick + 1, current - SLOTS + 1);
+        for (long t = from; t <= current; t++) {
+            int index = (int) (t % SLOTS);
+            Iterator<OurSession> it = wheel.get(index).iterator();
+            while (it.hasNext()) {
+                OurSession session = it.next();
+                if (sessions.get(session.getId()) != session) {
+                    // Already removed.
+                    it.remove();
+                }
+                else if (!session.isValid()) {
+                    it.remove();
+                    expire(session);
+                }
+                else {
+                    int slot = slot(session.getExpiryTime());
+                    if (slot != index) {
+                        it.remove();
+                        wheel.get(slot).add(session);
+                    }
+                }
+            }
+        }
+        if (store != null && current / PASSIVATION_TICKS != lastTick / PASSIVATION_TICKS) {
+            passivate();
+        }
+        if (current / STORE_TICKS != lastTick / STORE_TICKS) {
+            context.getStoredSessions().removeExpired();
+        }
+        lastTick = current;
+    }
+
+    /**
+     * Passivate the idle sessions and compact the store.
+     */
+    private void passivate() {
+        sessions.values().forEach((s) -> {
+            try {
+                s.passivate(store, passivationIdle);
+            } catch (Exception exc) {
+                context.log("could not passivate session " + s.getId(), exc);
+            }
+        });
+        try {
+            store.compact();
+        } catch (Exception exc) {
+            context.log("could not compact the passivation store", exc);
+        }
+    }
+
+    private void expire(OurSession session) {
+        expired.increment();
+        try {
+            session.expire();
+        } catch (Exception | LinkageError exc) {
+            // Also a listener of a bundle that is gone.
+            context.log("could not expire session " + session.getId(), exc);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.osgi.framework.Constants;
+
+/**
+ * Handler for static resources of a context: serves the resources as returned by the servlet context from the bundle.
+ * The bundle entries can only change when the bundle changes, so the validators are derived from the last modification
+ * time of the bundle. Conditional requests are answered with a "not modified" and single byte ranges are supported.
+ * The content is taken from the resource cache when possible. When compression is enabled, compressible resources
+ * are sent as a precompressed sibling ("path.br" or "path.gz") if the bundle has one, or else gzip compressed from
+ * the cache. The variants have their own entity tag and ranges apply to the variant sent. A gzip variant that
+ * isn't compressed by the cache is left to the compression of the response, and is always sent completely.
+ * The class path of the bundle is never served: neither the entries of the Bundle-ClassPath header nor, when the
+ * bundle root is on the class path, its class files.
+ */
+class StaticResources {
+    private OurServletContext context;
+    private String cacheControl;
+    private ResourceCache cache;
+    private Compression compression;
+    private List<String> classPath = new ArrayList<>();
+    private boolean rootClassPath;
+
+    StaticResources(OurServletContext context, Compression compression) {
+        this.context = context;
+        this.compression = compression;
+        cache = ResourceCache.instance();
+        if (cache != null) {
+            cache.register(context.getStatistics());
+        }
+        String maxAge = context.getInitParameter("osgi.extender.web.resources.maxage");
+        cacheControl = "public, max-age=" + (maxAge == null ? "0" : maxAge);
+        // Without the header, only the root is on the class path.
+        String header = context.getOwner().getHeaders("").get(Constants.BUNDLE_CLASSPATH);
+        for (String entry : header == null ? new String[] { "." } : header.split(",")) {
+            String path = entry.split(";")[0].trim();
+            if (path.equals(".") || path.equals("/")) {
+                rootClassPath = true;
+            }
+            else if (!path.isEmpty()) {
+                classPath.add(ResourceIndex.normalize(path));
+            }
+        }
+    }
+
+    /**
+     * Normalize the path of a resource and check whether it may be served. Duplicate slashes and backslashes are
+     * collapsed and escaped characters are decoded before the check, so no variant of a path reaches the private
+     * directories or leaves the context. The private directories, which includes the OSGi ones, may only be served
+     * to error pages.
+     *
+     * @param path The path within the context
+     * @param internal Whether the path comes from the descriptor instead of the client
+     * @return The normalized path or null if the path may not be served
+     */
+    static String normalize(String path, boolean internal) {
+        String normalized = ResourceIndex.normalize(path);
+        String decoded = decode(normalized);
+        if (decoded == null) {
+            return null;
+        }
+        decoded = ResourceIndex.normalize(decoded);
+        for (String segment : decoded.split("/")) {
+            if (segment.equals(".") || segment.equals("..") || (!internal && isPrivate(segment))) {
+                return null;
+            }
+        }
+        return normalized;
+    }
+
+    private static boolean isPrivate(String segment) {
+        return segment.equalsIgnoreCase("WEB-INF") || segment.equalsIgnoreCase("META-INF") ||
+                segment.equalsIgnoreCase("OSGI-INF") || segment.equalsIgnoreCase("OSGI-OPT");
+    }
+
+    /**
+     * Check whether a bundle entry is on the class path of the bundle.
+     */
+    private boolean isClassPath(URL url) {
+        String entry = ResourceIndex.normalize(url.getPath());
+        if (rootClassPath && entry.endsWith(".class")) {
+            return true;
+        }
+        return classPath.stream().anyMatch((p) -> entry.equals(p) || entry.startsWith(p.endsWith("/") ? p : p + "/"));
+    }
+
+    /**
+     * Decode the escaped characters of a path.
+     *
+     * @return The decoded path, null if the escapes are malformed
+     */
+    private static String decode(String path) {
+        if (path.indexOf('%') < 0) {
+            return path;
+        }
+        try {
+            return URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+        } catch (IllegalArgumentException | UnsupportedEncodingException exc) {
+            return null;
+        }
+    }
+
+    /**
+     * Serve a resource.
+     *
+     * @param request The request
+     * @param response The response
+     * @param path The path of the resource within the context
+     * @return true if the resource was found and handled, false if there is no such resource or it may not be served
+     * @throws IOException In case of I/O errors
+     */
+    boolean serve(HttpServletRequest request, HttpServletResponse response, String path) throws IOException {
+        boolean error = request.getDispatcherType() == DispatcherType.ERROR;
+        path = normalize(path, error);
+        URL url = path == null ? null : context.getResource(path);
+        if (url == null || url.getPath().endsWith("/") || (!error && isClassPath(url))) {
+            return false;
+        }
+        String method = request.getMethod();
+        boolean head = "HEAD".equals(method);
+        if (!head && !error && !"GET".equals(method)) {
+            response.setHeader("Allow", "GET, HEAD");
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return true;
+        }
+        String contentType = context.getMimeType(path);
+        String encoding = null;
+        String key = path;
+        ResourceCache.Content content = null;
+        // Whether the gzip variant has no sibling and is compressed by the cache or else by the response.
+        boolean computed = false;
+        if (!error && compression != null && compression.isCompressible(contentType)) {
+            response.setHeader("Vary", "Accept-Encoding");
+            URL variant;
+            if (Compression.accepts(request, "br") && (variant = context.getResource(path + ".br")) != null) {
+                encoding = "br";
+                key = path + ".br";
+                url = variant;
+            }
+            else if (Compression.accepts(request, "gzip")) {
+                encoding = "gzip";
+                if ((variant = context.getResource(path + ".gz")) != null) {
+                    key = path + ".gz";
+                    url = variant;
+                }
+                else {
+                    computed = true;
+                }
+            }
+        }
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+        // HTTP dates have a resolution of seconds.
+        long lastModified = context.getOwner().getLastModified() / 1000 * 1000;
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + Integer.toHexString(path.hashCode()) +
+                (encoding == null ? "" : "-" + encoding) + "\"";
+        if (!error) {
+            // The validators don't depend on the content, so a "not modified" doesn't need the cache.
+            response.setHeader("ETag", etag);
+            response.setDateHeader("Last-Modified", lastModified);
+            response.setHeader("Cache-Control", cacheControl);
+            if (notModified(request, etag, lastModified)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        }
+        // The headers of a HEAD request don't need the content either.
+        if (cache != null && !head) {
+            content = cache.get(context.getOwner(), key, url);
+            ResourceCache.Content compressed = !computed || content == null ||
+                    content.length < compression.getMinSize() ? null :
+                    cache.getCompressed(context.getOwner(), path, content);
+            if (compressed != null) {
+                content = compressed;
+                computed = false;
+            }
+        }
+        if (encoding != null && !computed) {
+            response.setHeader("Content-Encoding", encoding);
+        }
+        URLConnection connection = content == null ? url.openConnection() : null;
+        // The length of the gzip variant is only known once compressed.
+        long length = content != null ? content.length : head && computed ? -1 : connection.getContentLengthLong();
+        if (error) {
+            // An error page: the status is already set and the page is sent completely.
+            return send(response, content, connection, head, 0, length);
+        }
+        long start = 0;
+        long end = length - 1;
+        // The response compresses the gzip variant or not depending on its size, so it is sent completely.
+        if (length >= 0 && !computed) {
+            response.setHeader("Accept-Ranges", "bytes");
+            long[] range = range(request, etag, lastModified, length);
+            if (range != null) {
+                if (range.length == 0) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return true;
+                }
+                start = range[0];
+                end = range[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        return send(response, content, connection, head, start, length >= 0 ? end - start + 1 : -1);
+    }
+
+    /**
+     * Send the content of a resource.
+     *
+     * @param response The response
+     * @param content The cached content, null if not cached
+     * @param connection The connection to the resource if not cached
+     * @param head Whether only the headers must be sent
+     * @param start The start position
+     * @param count The number of bytes to send, -1 if unknown
+     * @return true
+     * @throws IOException In case of I/O errors
+     */
+    private static boolean send(HttpServletResponse response, ResourceCache.Content content, URLConnection connection,
+            boolean head, long start, long count) throws IOException {
+        if (count >= 0) {
+            response.setContentLengthLong(count);
+        }
+        if (head) {
+            return true;
+        }
+        if (content != null) {
+            content.write(response.getOutputStream(), start, count);
+            return true;
+        }
+        try (InputStream in = connection.getInputStream()) {
+            copy(in, response.getOutputStream(), start, count >= 0 ? count : Long.MAX_VALUE);
+        }
+        return true;
+    }
+
+    /**
+     * Check the conditional headers of a request. The entity tags take precedence over the modification date.
+     *
+     * @return true if the client has the current version of the resource
+     */
+    private static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+        String noneMatch = request.getHeader("If-None-Match");
+        if (noneMatch != null) {
+            // The weak comparison applies here.
+            for (String tag : noneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long since = request.getDateHeader("If-Modified-Since");
+            return since >= 0 && lastModified <= since;
+        } catch (IllegalArgumentException exc) {
+            return false;
+        }
+    }
+
+    /**
+     * Determine the byte range requested. Only a single range is supported: for multiple ranges the complete
+     * resource is returned, which is allowed by the specification.
+     *
+     * @return null if the complete resource must be returned, an empty array if the range cannot be satisfied
+     * and otherwise the first and last byte position of the range
+     */
+    private static long[] range(HttpServletRequest request, String etag, long lastModified, long length) {
+        String header = request.getHeader("Range");
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(etag)) {
+            try {
+                if (request.getDateHeader("If-Range") != lastModified) {
+                    return null;
+                }
+            } catch (IllegalArgumentException exc) {
+                return null;
+            }
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                // Suffix range: the last n bytes.
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+                if (suffix == 0) {
+                    return new long[0];
+                }
+            }
+            else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+            }
+            if (start >= length || end < start) {
+                return new long[0];
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException exc) {
+            return null;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long skip, long size) throws IOException {
+        while (skip > 0) {
+            long skipped = in.skip(skip);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    return;
+                }
+                skipped = 1;
+            }
+            skip -= skipped;
+        }
+        byte[] data = new byte[8192];
+        int read;
+        while (size > 0 && (read = in.read(data, 0, (int) Math.min(data.length, size))) > 0) {
+            out.write(data, 0, read);
+            size -= read;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import osgi.extender.web.WebContextStatistics;
+
+/**
+ * Statistics of a servlet context. Parts of the context register their counters here by name, either as
+ * a counter maintained by this class or as a supplier of a value maintained elsewhere.
+ */
+class Statistics implements WebContextStatistics {
+    private String contextPath;
+    private Map<String, LongSupplier> counters = new ConcurrentHashMap<>();
+
+    Statistics(String contextPath) {
+        this.contextPath = contextPath;
+    }
+
+    /**
+     * Create a counter that is maintained by this class.
+     *
+     * @param name The name of the counter
+     * @return The counter, to be updated by the caller
+     */
+    LongAdder counter(String name) {
+        LongAdder adder = new LongAdder();
+        register(name, adder::sum);
+        return adder;
+    }
+
+    /**
+     * Register a value that is maintained elsewhere.
+     *
+     * @param name The name of the counter
+     * @param supplier The supplier of the current value
+     */
+    void register(String name, LongSupplier supplier) {
+        counters.put(name, supplier);
+    }
+
+    @Override
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((k, v) -> values.put(k, v.getAsLong()));
+        return values;
+    }
+}
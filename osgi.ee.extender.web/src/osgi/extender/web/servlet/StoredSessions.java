@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.servlet;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.util.tracker.ServiceTracker;
+
+import osgi.extender.web.SessionStore;
+
+/**
+ * Handling of the sessions of a context when a session store service is available. The session is identified by
+ * a cookie of the context, named by the context parameter "osgi.extender.web.session.cookie" (default
+ * "OSGIWEBSESSION"). A session is cached locally and reloaded from the store when its version in the store differs
+ * from the local one. Changed attributes are written back by a background thread of the context after the request
+ * has been handled, so the request doesn't wait for the store. A session whose expiry time in the store has passed
+ * isn't loaded anymore; such sessions are removed from the store periodically by the reaper of the context.
+ */
+class StoredSessions {
+    private OurServletContext context;
+    private ServiceTracker<SessionStore, SessionStore> tracker;
+    private ExecutorService writer;
+    private String cookieName;
+    private LongAdder loads;
+    private LongAdder writes;
+    private LongAdder failures;
+
+    StoredSessions(OurServletContext context, Statistics statistics) {
+        this.context = context;
+        loads = statistics.counter("sessionstore.loads");
+        writes = statistics.counter("sessionstore.writes");
+        failures = statistics.counter("sessionstore.failures");
+    }
+
+    /**
+     * Start tracking the session store.
+     */
+    void start() {
+        String name = context.getInitParameter("osgi.extender.web.session.cookie");
+        cookieName = name == null ? "OSGIWEBSESSION" : name;
+        writer = Executors.newSingleThreadExecutor((r) -> {
+            Thread thread = new Thread(r, "web session writer " + context.getContextPath());
+            thread.setDaemon(true);
+            return thread;
+        });
+        BundleContext bc = context.getOwner().getBundleContext();
+        tracker = new ServiceTracker<>(bc, SessionStore.class, null);
+        tracker.open();
+    }
+
+    /**
+     * Stop tracking the store, after the pending writes are done.
+     */
+    void stop() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        tracker.close();
+    }
+
+    /**
+     * Check whether the sessions are kept in a store.
+     *
+     * @return true if there is a store
+     */
+    boolean isEnabled() {
+        return tracker != null && !tracker.isEmpty();
+    }
+
+    /**
+     * Get the session of a request from the store.
+     *
+     * @param request The request
+     * @param response The response, used to send the cookie of a new session
+     * @param create Whether to create a session if there is none
+     * @return The session, null if there is none and it isn't created
+     */
+    OurSession resolve(HttpServletRequest request, HttpServletResponse response, boolean create) {
+        SessionStore store = tracker.getService();
+        String id = cookie(request);
+        OurSession session = store == null || id == null ? null : lookup(store, id);
+        if (session != null) {
+            session.setLastAccessedTime(System.currentTimeMillis());
+            return session;
+        }
+        if (!create) {
+            return null;
+        }
+        session = new OurSession(context, null);
+        context.getSessions().add(session);
+        Cookie cookie = new Cookie(cookieName, session.getId());
+        cookie.setPath(context.getContextPath().isEmpty() ? "/" : context.getContextPath());
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        response.addCookie(cookie);
+        session.valueBound(null);
+        return session;
+    }
+
+    private String cookie(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (cookieName.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Look up a session: the local copy if it is current, otherwise it is loaded from the store.
+     */
+    private OurSession lookup(SessionStore store, String id) {
+        OurSession local = context.getSessions().get(id);
+        if (local != null && !local.isValid()) {
+            local = null;
+        }
+        if (local != null && local.hasPendingChanges()) {
+            // The local changes are newer than the store until they are written, a reload would lose them.
+            return local;
+        }
+        long version = store.getVersion(context.getContextPath(), id);
+        if (local != null && (local.getVersion() == version || (version < 0 && local.getVersion() == 0))) {
+            // Current, or new and not written yet.
+            return local;
+        }
+        SessionStore.Times times = version < 0 ? null : store.getTimes(context.getContextPath(), id);
+        if (times != null && times.expiry <= System.currentTimeMillis()) {
+            // Expired, also when another node didn't get to remove it yet.
+            remove(id);
+            times = null;
+        }
+        Map<String, byte[]> data = times == null ? null : store.load(context.getContextPath(), id);
+        if (data == null) {
+            // Removed from the store, for example by another node.
+            if (local != null) {
+                context.getSessions().remove(local);
+            }
+            return null;
+        }
+        loads.increment();
+        Map<String, Object> values = new HashMap<>();
+        data.forEach((k, v) -> {
+            try {
+                values.put(k, OurSession.deserialize(v, context.getClassLoader()));
+            } catch (IOException | ClassNotFoundException exc) {
+                context.log("could not restore attribute " + k + " of session " + id, exc);
+            }
+        });
+        if (local == null) {
+            local = new OurSession(context, null, id);
+            context.getSessions().add(local);
+        }
+        local.restore(values, version, times);
+        return local;
+    }
+
+    /**
+     * Called when a request that used a session is done: schedules the write of the changes.
+     *
+     * @param session The session
+     */
+    void requestEnded(OurSession session) {
+        if (session.needsWrite() && session.setWritePending(true)) {
+            try {
+                writer.execute(() -> write(session));
+            } catch (Exception exc) {
+                // Stopped.
+                session.setWritePending(false);
+            }
+        }
+    }
+
+    private void write(OurSession session) {
+        boolean written;
+        try {
+            written = store(session);
+        } finally {
+            session.setWritePending(false);
+        }
+        if (written) {
+            // Changes made during the write are written by a next write.
+            requestEnded(session);
+        }
+    }
+
+    /**
+     * Write the changes of a session. The write stays pending meanwhile, so the session isn't reloaded.
+     *
+     * @return true if the changes are written
+     */
+    private boolean store(OurSession session) {
+        SessionStore store = tracker.getService();
+        if (store == null || !session.isValid()) {
+            return false;
+        }
+        Set<String> names = session.takeDirty();
+        Map<String, byte[]> changed = new HashMap<>();
+        Set<String> removed = new HashSet<>();
+        names.forEach((n) -> {
+            Object value = session.getStoredValue(n);
+            if (value == null) {
+                removed.add(n);
+                return;
+            }
+            try {
+                changed.put(n, OurSession.serialize(value));
+            } catch (IOException exc) {
+                context.log("could not store attribute " + n + " of session " + session.getId(), exc);
+            }
+        });
+        SessionStore.Times times = new SessionStore.Times(session.getCreationTime(), session.getLastAccessedTime(),
+                session.getExpiryTime());
+        try {
+            session.stored(store.store(context.getContextPath(), session.getId(), times, changed, removed),
+                    times.expiry);
+            writes.increment();
+            return true;
+        } catch (Exception exc) {
+            failures.increment();
+            // Try again after the next request.
+            session.markDirty(names);
+            context.log("could not store session " + session.getId(), exc);
+            return false;
+        }
+    }
+
+    /**
+     * Remove an invalidated session from the store. Expired sessions are not removed here, since other nodes may
+     * still use them, but by {@link #removeExpired()}.
+     *
+     * @param session The session
+     */
+    void remove(OurSession session) {
+        remove(session.getId());
+    }
+
+    private void remove(String id) {
+        SessionStore store = tracker.getService();
+        if (store == null) {
+            return;
+        }
+        try {
+            writer.execute(() -> store.remove(context.getContextPath(), id));
+        } catch (Exception exc) {
+            store.remove(context.getContextPath(), id);
+        }
+    }
+
+    /**
+     * Remove the expired sessions from the store, in the background. Called by the reaper of the context.
+     */
+    void removeExpired() {
+        SessionStore store = isEnabled() ? tracker.getService() : null;
+        if (store == null) {
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    store.removeExpired(context.getContextPath(), System.currentTimeMillis());
+                } catch (Exception exc) {
+                    context.log("could not remove the expired sessions from the store", exc);
+                }
+            });
+        } catch (Exception exc) {
+            // Stopped.
+        }
+    }
+}
@@ -33,6 +33,7 @@ public class DynamicRegistration<T> implements Registration {
     private Map<String, String> initParameters = new HashMap<>();
     private T object;
     private boolean async;
+    private Runnable changeListener;
 
     @Override
     public String getClassName() {
@@ -91,12 +92,31 @@ public class DynamicRegistration<T> implements Registration {
 
     public void setAsyncSupported(boolean s) {
         this.async = s;
+        changed();
     }
 
     public boolean isAsyncSupported() {
         return this.async;
     }
 
+    /**
+     * Set the listener that is notified when the mappings of this registration change.
+     *
+     * @param listener The listener to run on changes, may be null
+     */
+    public void setChangeListener(Runnable listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Notify the change listener, if any, that the mappings of this registration have changed.
+     */
+    protected void changed() {
+        if (changeListener != null) {
+            changeListener.run();
+        }
+    }
+
     @Override
     public String toString() {
         return getName() + " - " + getObject();
@@ -25,9 +25,12 @@ import javax.servlet.ServletSecurityElement;
 
 /**
  * Dynamic servlet registration implementation. Extends a normal servlet registration with
- * some additional functionality that has no use in this functionality.
+ * some additional functionality that has no use in this functionality. Keeps the load-on-startup value and whether
+ * the servlet is initialized, since servlets without a load-on-startup value are initialized on first use.
  */
 public class DynamicSRegistration extends SRegistration implements ServletRegistration.Dynamic {
+    private int loadOnStartup = -1;
+    private volatile boolean initialized;
 
     public DynamicSRegistration(String name, Servlet servlet) {
         setName(name);
@@ -36,7 +39,24 @@ public class DynamicSRegistration extends SRegistration implements ServletRegist
 
     @Override
     public void setLoadOnStartup(int los) {
-        // We load all servlets at startup.
+        loadOnStartup = los;
+    }
+
+    /**
+     * Get the load-on-startup value.
+     *
+     * @return The value, negative if the servlet is initialized on first use
+     */
+    public int getLoadOnStartup() {
+        return loadOnStartup;
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    public void setInitialized(boolean initialized) {
+        this.initialized = initialized;
     }
 
     @Override
@@ -34,8 +34,10 @@ public class FRegistration extends DynamicRegistration<Filter> implements Filter
     private List<StringDispatcherPair> urlMapping = new ArrayList<>();
 
     private static void addTo(List<StringDispatcherPair> list, EnumSet<DispatcherType> types, boolean after, String... strings) {
+        // No types means the default: requests only.
+        EnumSet<DispatcherType> applicable = types == null ? EnumSet.of(DispatcherType.REQUEST) : types;
         List<StringDispatcherPair> toAdd = Arrays.asList(strings).stream().
-                map((s) -> new StringDispatcherPair(s, types)).
+                map((s) -> new StringDispatcherPair(s, applicable)).
                 collect(Collectors.toList());
         int index = after ? list.size() : 0;
         list.addAll(index, toAdd);
@@ -44,11 +46,13 @@ public class FRegistration extends DynamicRegistration<Filter> implements Filter
     @Override
     public void addMappingForServletNames(EnumSet<DispatcherType> types, boolean after, String... names) {
         addTo(servletMapping, types, after, names);
+        changed();
     }
 
     @Override
     public void addMappingForUrlPatterns(EnumSet<DispatcherType> types, boolean after, String... patt) {
         addTo(urlMapping, types, after, patt);
+        changed();
     }
 
     @Override
@@ -61,6 +65,26 @@ public class FRegistration extends DynamicRegistration<Filter> implements Filter
         return urlMapping.stream().map((p) -> p.string).collect(Collectors.toList());
     }
 
+    /**
+     * Get the servlet name mappings that apply to a specific dispatcher type.
+     *
+     * @param type The dispatcher type
+     * @return The servlet names mapped for the type
+     */
+    public Collection<String> getServletNameMappings(DispatcherType type) {
+        return servletMapping.stream().filter((p) -> p.types.contains(type)).map((p) -> p.string).collect(Collectors.toList());
+    }
+
+    /**
+     * Get the URL pattern mappings that apply to a specific dispatcher type.
+     *
+     * @param type The dispatcher type
+     * @return The URL patterns mapped for the type
+     */
+    public Collection<String> getUrlPatternMappings(DispatcherType type) {
+        return urlMapping.stream().filter((p) -> p.types.contains(type)).map((p) -> p.string).collect(Collectors.toList());
+    }
+
     static class StringDispatcherPair {
         final String string;
         final EnumSet<DispatcherType> types;
@@ -43,7 +43,11 @@ public class SRegistration extends DynamicRegistration<Servlet> implements Servl
 
     @Override
     public Set<String> addMapping(String... maps) {
-        return Arrays.asList(maps).stream().filter((s) -> !addMapping(s)).collect(Collectors.toSet());
+        Set<String> existing = Arrays.asList(maps).stream().filter((s) -> !addMapping(s)).collect(Collectors.toSet());
+        if (existing.size() < maps.length) {
+            changed();
+        }
+        return existing;
     }
 
     @Override
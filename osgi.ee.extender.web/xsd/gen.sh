@@ -1,3 +1,2 @@
 #!/bin/sh
-xjc -d ../src web-app_3_1.xsd
-
+xjc -d reference web-app_3_1.xsd
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015, aVineas IT Consulting
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package osgi.extender.web.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.jcp.xmlns.xml.ns.javaee.ErrorPageType;
+import org.jcp.xmlns.xml.ns.javaee.FilterMappingType;
+import org.jcp.xmlns.xml.ns.javaee.FilterType;
+import org.jcp.xmlns.xml.ns.javaee.ListenerType;
+import org.jcp.xmlns.xml.ns.javaee.ParamValueType;
+import org.jcp.xmlns.xml.ns.javaee.ServletMappingType;
+import org.jcp.xmlns.xml.ns.javaee.ServletNameType;
+import org.jcp.xmlns.xml.ns.javaee.ServletType;
+import org.jcp.xmlns.xml.ns.javaee.SessionConfigType;
+import org.jcp.xmlns.xml.ns.javaee.TrueFalseType;
+import org.jcp.xmlns.xml.ns.javaee.UrlPatternType;
+import org.jcp.xmlns.xml.ns.javaee.WebAppType;
+import org.jcp.xmlns.xml.ns.javaee.WelcomeFileListType;
+
+/**
+ * Parity check and benchmark of the streaming web.xml parser against the reference implementation it replaced: an
+ * XSLT translation of the old namespace followed by JAXB unmarshalling into the classes generated from the schema.
+ * Both results are reduced to the same summary of the elements the extender uses, and compared. After that, each
+ * parser is timed. The reference needs a JAXB runtime, so run it with Java 8 or with a JAXB implementation on the
+ * class path, together with the classes of the bundle:
+ *
+ * <pre>
+ * java osgi.extender.web.service.DescriptorParity [iterations] file...
+ * </pre>
+ *
+ * The reference doesn't accept descriptors without a namespace, for those only the summary of the parser is shown.
+ */
+public class DescriptorParity {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 1000;
+        List<String> names = new ArrayList<>(Arrays.asList(args));
+        if (!names.isEmpty() && names.get(0).matches("\\d+")) {
+            iterations = Integer.parseInt(names.remove(0));
+        }
+        boolean same = true;
+        for (String name : names) {
+            byte[] data = Files.readAllBytes(new File(name).toPath());
+            List<String> parsed = summary(WebAppDescriptor.parse(new ByteArrayInputStream(data)));
+            List<String> reference;
+            try {
+                reference = summary(reference(data));
+            } catch (Exception exc) {
+                System.out.println(name + ": not accepted by the reference (" + exc + ")");
+                parsed.forEach((l) -> System.out.println("    " + l));
+                continue;
+            }
+            if (parsed.equals(reference)) {
+                System.out.println(name + ": same, " + parsed.size() + " entries");
+            }
+            else {
+                same = false;
+                System.out.println(name + ": DIFFERENT");
+                reference.stream().filter((l) -> !parsed.contains(l)).forEach((l) -> System.out.println("  - " + l));
+                parsed.stream().filter((l) -> !reference.contains(l)).forEach((l) -> System.out.println("  + " + l));
+                continue;
+            }
+            System.out.println("    parser:    " + time(iterations, () -> WebAppDescriptor.parse(
+                    new ByteArrayInputStream(data))) + " us/parse");
+            System.out.println("    reference: " + time(iterations, () -> reference(data)) + " us/parse");
+        }
+        System.exit(same ? 0 : 1);
+    }
+
+    private interface Parse {
+        Object parse() throws Exception;
+    }
+
+    /**
+     * Time a parse, after the same number of iterations for warming up.
+     *
+     * @return The average time in microseconds
+     */
+    private static long time(int iterations, Parse parse) throws Exception {
+        for (int cnt = 0; cnt < iterations; cnt++) {
+            parse.parse();
+        }
+        long start = System.nanoTime();
+        for (int cnt = 0; cnt < iterations; cnt++) {
+            parse.parse();
+        }
+        return (System.nanoTime() - start) / iterations / 1000;
+    }
+
+    /**
+     * Parse a descriptor the way the extender did before: translate the namespace and unmarshal, with a new
+     * stylesheet and JAXB context for every descriptor.
+     */
+    private static WebAppType reference(byte[] data) throws Exception {
+        Transformer trans = TransformerFactory.newInstance().newTransformer(new StreamSource(
+                DescriptorParity.class.getResourceAsStream("translatens.xsl")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trans.transform(new StreamSource(new ByteArrayInputStream(data)), new StreamResult(out));
+        JAXBElement<?> element = (JAXBElement<?>) JAXBContext.newInstance(WebAppType.class).createUnmarshaller().
+                unmarshal(new ByteArrayInputStream(out.toByteArray()));
+        return (WebAppType) element.getValue();
+    }
+
+    private static List<String> summary(WebAppDescriptor descriptor) {
+        List<String> lines = new ArrayList<>();
+        descriptor.contextParams.forEach((n, v) -> lines.add("context-param " + n + "=" + v));
+        descriptor.listeners.forEach((l) -> lines.add("listener " + l));
+        descriptor.servlets.forEach((s) -> lines.add("servlet " + s.name + " " + s.className + " " +
+                s.initParams + " async=" + s.asyncSupported + " load-on-startup=" + s.loadOnStartup));
+        descriptor.servletMappings.forEach((m) -> lines.add("servlet-mapping " + m.name + " " + m.urlPatterns));
+        descriptor.filters.forEach((f) -> lines.add("filter " + f.name + " " + f.className + " " +
+                f.initParams + " async=" + f.asyncSupported));
+        descriptor.filterMappings.forEach((m) -> lines.add("filter-mapping " + m.name + " " + m.urlPatterns + " " +
+                m.servletNames + " " + m.dispatchers));
+        descriptor.welcomeFiles.forEach((w) -> lines.add("welcome-file " + w));
+        descriptor.errorPages.forEach((p) -> lines.add("error-page " + p.errorCode + " " + p.exceptionType + " " +
+                p.location));
+        if (descriptor.sessionTimeout != null) {
+            lines.add("session-timeout " + descriptor.sessionTimeout);
+        }
+        return lines;
+    }
+
+    private static List<String> summary(WebAppType type) {
+        List<String> lines = new ArrayList<>();
+        Collection<JAXBElement<?>> elements = type.getModuleNameOrDescriptionAndDisplayName();
+        values(elements, ParamValueType.class).forEach((p) -> lines.add("context-param " +
+                p.getParamName().getValue().trim() + "=" + p.getParamValue().getValue().trim()));
+        values(elements, ListenerType.class).forEach((l) -> lines.add("listener " +
+                l.getListenerClass().getValue().trim()));
+        values(elements, ServletType.class).forEach((s) -> {
+            String load = s.getLoadOnStartup() == null ? null : s.getLoadOnStartup().trim();
+            lines.add("servlet " + s.getServletName().getValue().trim() + " " +
+                    s.getServletClass().getValue().trim() + " " + params(s.getInitParam()) + " async=" +
+                    bool(s.getAsyncSupported()) + " load-on-startup=" +
+                    (load == null ? null : load.isEmpty() ? 0 : Integer.valueOf(load)));
+        });
+        values(elements, ServletMappingType.class).forEach((m) -> lines.add("servlet-mapping " +
+                m.getServletName().getValue().trim() + " " +
+                m.getUrlPattern().stream().map((u) -> u.getValue().trim()).collect(Collectors.toList())));
+        values(elements, FilterType.class).forEach((f) -> lines.add("filter " + f.getFilterName().getValue().trim() +
+                " " + f.getFilterClass().getValue().trim() + " " + params(f.getInitParam()) + " async=" +
+                bool(f.getAsyncSupported())));
+        values(elements, FilterMappingType.class).forEach((m) -> lines.add("filter-mapping " +
+                m.getFilterName().getValue().trim() + " " +
+                m.getUrlPatternOrServletName().stream().filter((o) -> o instanceof UrlPatternType).
+                    map((o) -> ((UrlPatternType) o).getValue().trim()).collect(Collectors.toList()) + " " +
+                m.getUrlPatternOrServletName().stream().filter((o) -> o instanceof ServletNameType).
+                    map((o) -> ((ServletNameType) o).getValue().trim()).collect(Collectors.toList()) + " " +
+                m.getDispatcher().stream().map((d) -> d.getValue().trim()).collect(Collectors.toList())));
+        values(elements, WelcomeFileListType.class).forEach((w) ->
+            w.getWelcomeFile().forEach((f) -> lines.add("welcome-file " + f.trim())));
+        values(elements, ErrorPageType.class).forEach((p) -> lines.add("error-page " +
+                (p.getErrorCode() == null ? null : p.getErrorCode().getValue().intValue()) + " " +
+                (p.getExceptionType() == null ? null : p.getExceptionType().getValue().trim()) + " " +
+                p.getLocation().getValue().trim()));
+        values(elements, SessionConfigType.class).stream().filter((c) -> c.getSessionTimeout() != null).
+            forEach((c) -> lines.add("session-timeout " + c.getSessionTimeout().getValue().intValue()));
+        return lines;
+    }
+
+    private static <T> List<T> values(Collection<JAXBElement<?>> elements, Class<T> type) {
+        return elements.stream().map(JAXBElement::getValue).filter(type::isInstance).map(type::cast).
+                collect(Collectors.toList());
+    }
+
+    private static Map<String, String> params(List<ParamValueType> params) {
+        Map<String, String> map = new LinkedHashMap<>();
+        params.forEach((p) -> map.put(p.getParamName().getValue().trim(), p.getParamValue().getValue().trim()));
+        return map;
+    }
+
+    private static Boolean bool(TrueFalseType value) {
+        return value == null ? null : value.isValue();
+    }
+}